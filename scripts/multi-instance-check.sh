@@ -0,0 +1,48 @@
+#!/usr/bin/env bash
+# Starts two API instances sharing the same JWT key ring, logs in on the first one and checks that
+# the second one accepts the session, while a third instance with its own key refuses it. Run from
+# the repository root after ./mvnw clean package.
+set -euo pipefail
+
+JAR=${JAR:-target/project3-1.0-SNAPSHOT.jar}
+PORT_A=${PORT_A:-8081}
+PORT_B=${PORT_B:-8082}
+PORT_C=${PORT_C:-8083}
+COOKIES=$(mktemp)
+
+# Both instances get the same random key
+export JWT_KEYS="test:$(head -c 32 /dev/urandom | base64)"
+
+PORT=$PORT_A java -jar "$JAR" > /dev/null 2>&1 &
+PID_A=$!
+PORT=$PORT_B java -jar "$JAR" > /dev/null 2>&1 &
+PID_B=$!
+# The third instance gets a key of its own
+JWT_KEYS="other:$(head -c 32 /dev/urandom | base64)" PORT=$PORT_C java -jar "$JAR" > /dev/null 2>&1 &
+PID_C=$!
+trap 'kill $PID_A $PID_B $PID_C 2> /dev/null; rm -f "$COOKIES"' EXIT
+
+for port in "$PORT_A" "$PORT_B" "$PORT_C"; do
+  for _ in $(seq 60); do
+    curl -s -o /dev/null "http://localhost:$port/swagger" && break
+    sleep 0.5
+  done
+done
+
+curl -s -f -c "$COOKIES" -o /dev/null -X POST "http://localhost:$PORT_A/auth/login" \
+  -H 'Content-Type: application/json' \
+  -d '{"email":"admin@example.com","password":"admin"}'
+
+status=$(curl -s -b "$COOKIES" -o /dev/null -w '%{http_code}' "http://localhost:$PORT_B/auth/profile")
+if [ "$status" != "200" ]; then
+  echo "FAIL: token issued on :$PORT_A rejected on :$PORT_B with $status"
+  exit 1
+fi
+
+status=$(curl -s -b "$COOKIES" -o /dev/null -w '%{http_code}' "http://localhost:$PORT_C/auth/profile")
+if [ "$status" != "401" ]; then
+  echo "FAIL: token issued on :$PORT_A answered $status on :$PORT_C, which has another key"
+  exit 1
+fi
+
+echo "OK: token issued on :$PORT_A accepted on :$PORT_B, refused on :$PORT_C"
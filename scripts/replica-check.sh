@@ -0,0 +1,77 @@
+#!/usr/bin/env bash
+# Starts a primary and a read replica, creates an item on the primary and checks that the replica
+# serves it, rejects writes, reports its lag and refuses a session closed on the primary. Run from
+# the repository root after ./mvnw clean package.
+set -euo pipefail
+
+JAR=${JAR:-target/project3-1.0-SNAPSHOT.jar}
+PORT_PRIMARY=${PORT_PRIMARY:-8081}
+PORT_REPLICA=${PORT_REPLICA:-8082}
+COOKIES=$(mktemp)
+NAME="replica-check-$RANDOM"
+
+# The replica checks the primary's tokens, and presents the replication token to the primary
+export JWT_KEYS="test:$(head -c 32 /dev/urandom | base64)"
+export REPLICATION_TOKEN=$(head -c 32 /dev/urandom | base64)
+
+PORT=$PORT_PRIMARY java -jar "$JAR" > /dev/null 2>&1 &
+PID_PRIMARY=$!
+trap 'kill $PID_PRIMARY ${PID_REPLICA:-} 2> /dev/null; rm -f "$COOKIES" "$COOKIES.old"' EXIT
+for _ in $(seq 60); do
+  curl -s -o /dev/null "http://localhost:$PORT_PRIMARY/swagger" && break
+  sleep 0.5
+done
+
+REPLICATE_FROM="http://localhost:$PORT_PRIMARY" PORT=$PORT_REPLICA java -jar "$JAR" > /dev/null 2>&1 &
+PID_REPLICA=$!
+for _ in $(seq 60); do
+  curl -s -f -o /dev/null "http://localhost:$PORT_REPLICA/replication/status?maxLagMillis=2000" \
+    && break
+  sleep 0.5
+done
+
+curl -s -f -c "$COOKIES" -o /dev/null -X POST "http://localhost:$PORT_PRIMARY/auth/login" \
+  -H 'Content-Type: application/json' \
+  -d '{"email":"admin@example.com","password":"admin"}'
+curl -s -f -b "$COOKIES" -o /dev/null -X POST "http://localhost:$PORT_PRIMARY/inventory/create" \
+  -H 'Content-Type: application/json' \
+  -d "{\"name\":\"$NAME\",\"num\":3}"
+
+found=""
+for _ in $(seq 20); do
+  found=$(curl -s -b "$COOKIES" "http://localhost:$PORT_REPLICA/inventory/list?name=$NAME")
+  [ "$found" != "[]" ] && [ -n "$found" ] && break
+  sleep 0.1
+done
+if [[ "$found" != *"$NAME"* ]]; then
+  echo "FAIL: item created on :$PORT_PRIMARY not found on :$PORT_REPLICA ($found)"
+  exit 1
+fi
+
+status=$(curl -s -b "$COOKIES" -o /dev/null -w '%{http_code}' -X POST \
+  "http://localhost:$PORT_REPLICA/inventory/create" \
+  -H 'Content-Type: application/json' \
+  -d '{"name":"rejected","num":1}')
+if [ "$status" != "403" ]; then
+  echo "FAIL: write on replica :$PORT_REPLICA answered $status instead of 403"
+  exit 1
+fi
+
+# The session cookie is kept to replay it once the session is closed on the primary
+cp "$COOKIES" "$COOKIES.old"
+curl -s -f -b "$COOKIES" -c "$COOKIES" -o /dev/null -X POST \
+  "http://localhost:$PORT_PRIMARY/auth/logout"
+for _ in $(seq 20); do
+  status=$(curl -s -b "$COOKIES.old" -o /dev/null -w '%{http_code}' \
+    "http://localhost:$PORT_REPLICA/inventory/list")
+  [ "$status" = "401" ] && break
+  sleep 0.1
+done
+if [ "$status" != "401" ]; then
+  echo "FAIL: session closed on :$PORT_PRIMARY answered $status on :$PORT_REPLICA instead of 401"
+  exit 1
+fi
+
+echo "OK: replica :$PORT_REPLICA follows :$PORT_PRIMARY, rejects writes and closed sessions"
+curl -s "http://localhost:$PORT_REPLICA/replication/status"
+echo
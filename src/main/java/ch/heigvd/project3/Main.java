@@ -2,44 +2,157 @@ package ch.heigvd.project3;
 
 import ch.heigvd.project3.auth.AuthController;
 import ch.heigvd.project3.auth.AuthUtil;
+import ch.heigvd.project3.auth.KeyRing;
+import ch.heigvd.project3.auth.PasswordHasher;
 import ch.heigvd.project3.inventory.InventoryController;
-import ch.heigvd.project3.inventory.Item;
+import ch.heigvd.project3.inventory.InventoryStore;
+import ch.heigvd.project3.persistence.Mutation;
+import ch.heigvd.project3.persistence.Recovery;
+import ch.heigvd.project3.persistence.ReplicationLog;
+import ch.heigvd.project3.persistence.Snapshotter;
+import ch.heigvd.project3.persistence.WriteAheadLog;
+import ch.heigvd.project3.replication.ReplicaFollower;
+import ch.heigvd.project3.replication.ReplicationController;
 import ch.heigvd.project3.users.Role;
 import ch.heigvd.project3.users.User;
+import ch.heigvd.project3.users.UserDirectory;
 import ch.heigvd.project3.users.UsersController;
 import io.javalin.Javalin;
 import io.javalin.http.ForbiddenResponse;
+import io.javalin.http.HandlerType;
 import io.javalin.http.UnauthorizedResponse;
 import io.javalin.openapi.plugin.OpenApiPlugin;
 import io.javalin.openapi.plugin.swagger.SwaggerPlugin;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Main application class that sets up the Javalin server and configures routes for authentication,
  * user management, and inventory management.
  */
 public class Main {
-  // TODO : DEFINE THE PORT
+  private static final Logger LOG = LoggerFactory.getLogger(Main.class);
+
+  // Used when the PORT environment variable is not set
   public static final int PORT = 8080;
 
   /**
    * Main method to start the Javalin server and configure routes.
    *
    * @param args command-line arguments
+   * @throws IOException if the write-ahead log or the JWT key file cannot be read
    */
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException {
 
     ConcurrentHashMap<Integer, User> users = new ConcurrentHashMap<>();
-    ConcurrentHashMap<Integer, Item> inventory = new ConcurrentHashMap<>();
+    // Selected by INVENTORY_STORE, the compact store holds millions of items in far less memory
+    InventoryStore inventory = InventoryStore.fromEnvironment();
+
+    // A read replica copies everything from its primary and serves reads only
+    String primaryUrl = System.getenv("REPLICATE_FROM");
+    boolean replica = primaryUrl != null && !primaryUrl.isBlank();
+    String replicationToken = System.getenv("REPLICATION_TOKEN");
+    // Without a shared key ring the replica would refuse every session of the primary
+    if (replica
+        && (replicationToken == null || replicationToken.isBlank() || !KeyRing.isConfigured())) {
+      throw new IllegalStateException(
+          "A read replica needs REPLICATION_TOKEN and JWT_KEYS or JWT_KEYS_FILE set");
+    }
+
+    // Persistence is optional: without WAL_PATH everything lives in memory only
+    Recovery recovery = new Recovery(inventory, users);
+    WriteAheadLog wal = WriteAheadLog.disabled();
+    String walPath = System.getenv("WAL_PATH");
+    Path snapshotPath = null;
+    if (!replica && walPath != null && !walPath.isBlank()) {
+      String snapshotEnv = System.getenv("SNAPSHOT_PATH");
+      boolean customSnapshot = snapshotEnv != null && !snapshotEnv.isBlank();
+      snapshotPath = Path.of(customSnapshot ? snapshotEnv : walPath + ".snapshot");
+
+      long start = System.nanoTime();
+      Snapshotter.load(snapshotPath, recovery);
+      long snapshotLoaded = System.nanoTime();
+      wal = WriteAheadLog.open(Path.of(walPath), recovery::apply);
+      long logReplayed = System.nanoTime();
+      Runtime.getRuntime().addShutdownHook(new Thread(wal::close));
+      LOG.info(
+          "Restored {} items and {} users in {} ms (snapshot {} ms, {} logged mutations {} ms)",
+          inventory.size(),
+          users.size(),
+          TimeUnit.NANOSECONDS.toMillis(logReplayed - start),
+          TimeUnit.NANOSECONDS.toMillis(snapshotLoaded - start),
+          recovery.applied(),
+          TimeUnit.NANOSECONDS.toMillis(logReplayed - snapshotLoaded));
+    }
 
     // default admin user
-    User defaultAdmin =
-        new User(0, "Admin", "User", "admin@example.com", AuthUtil.createHash("admin"), Role.ADMIN);
-    users.put(defaultAdmin.id(), defaultAdmin);
+    boolean addDefaultAdmin = !replica && users.isEmpty();
+    if (addDefaultAdmin) {
+      User defaultAdmin =
+          User.versioned(
+              0, "Admin", "User", "admin@example.com", AuthUtil.createHash("admin"), Role.ADMIN, 1);
+      users.put(defaultAdmin.id(), defaultAdmin);
+    }
+
+    // Argon2 runs on its own bounded pool, away from the Jetty request threads
+    PasswordHasher hasher = PasswordHasher.fromEnvironment();
+
+    // Shared by both controllers, so that users are looked up by email without a scan
+    UserDirectory directory = new UserDirectory(users);
+
+    // Instances configured with the same keys accept each other's tokens
+    KeyRing keyRing = KeyRing.fromEnvironment();
+    LOG.info("Signing JWTs with key {} ({} keys accepted)", keyRing.signingKeyId(), keyRing.size());
 
-    AuthController authController = new AuthController(users);
-    UsersController usersController = new UsersController(users);
-    InventoryController inventoryController = new InventoryController(inventory);
+    // Every applied mutation, streamed to the read replicas
+    ReplicationLog replicationLog = new ReplicationLog(inventory, users);
+
+    AuthController authController = new AuthController(directory, hasher, keyRing, replicationLog);
+    UsersController usersController = new UsersController(directory, wal, hasher, replicationLog);
+    InventoryController inventoryController =
+        new InventoryController(inventory, wal, replicationLog);
+    usersController.restoreIdCounter(recovery.highestUserId());
+    inventoryController.restoreIdCounter(recovery.highestItemId());
+
+    if (addDefaultAdmin) {
+      wal.append(new Mutation.UserPut(users.get(0)));
+      wal.awaitDurable();
+    }
+
+    if (snapshotPath != null) {
+      String intervalEnv = System.getenv("SNAPSHOT_INTERVAL_SECONDS");
+      long interval =
+          intervalEnv != null && !intervalEnv.isBlank() ? Long.parseLong(intervalEnv) : 300;
+      Snapshotter snapshotter =
+          new Snapshotter(
+              snapshotPath,
+              wal,
+              inventory,
+              users,
+              inventoryController::highestIdUsed,
+              usersController::highestIdUsed);
+      snapshotter.start(Duration.ofSeconds(interval));
+    }
+
+    ReplicaFollower follower = null;
+    if (replica) {
+      follower =
+          new ReplicaFollower(
+              primaryUrl.trim(),
+              replicationToken,
+              inventory,
+              users,
+              inventoryController,
+              usersController,
+              authController);
+      follower.start();
+      LOG.info("Read replica of {}", primaryUrl.trim());
+    }
 
     // for testing purposes
     Javalin app =
@@ -70,6 +183,20 @@ public class Main {
                       }));
             });
 
+    if (replica) {
+      // Signing in only opens a session on this instance, everything else must go to the primary
+      app.before(
+          ctx -> {
+            boolean read =
+                ctx.method() == HandlerType.GET
+                    || ctx.method() == HandlerType.HEAD
+                    || ctx.method() == HandlerType.OPTIONS;
+            if (!read && !ctx.path().startsWith("/auth/")) {
+              throw new ForbiddenResponse("Read-only replica, send writes to the primary.");
+            }
+          });
+    }
+
     app.before(
         ctx -> {
           String jwt = ctx.cookie(AuthController.SESSION_COOKIE_NAME);
@@ -82,7 +209,10 @@ public class Main {
             User user = authController.validateJWT(jwt);
             ctx.attribute(AuthController.AUTHENTICATED_USER_KEY, user);
           } catch (UnauthorizedResponse e) {
-            ctx.removeCookie(AuthController.SESSION_COOKIE_NAME);
+            // The session cookie of a replica is the primary's, whose verdict may differ
+            if (!replica) {
+              ctx.removeCookie(AuthController.SESSION_COOKIE_NAME);
+            }
             ctx.attribute(AuthController.AUTHENTICATED_USER_KEY, null);
           }
         });
@@ -114,8 +244,10 @@ public class Main {
         });
 
     app.post("/auth/login", authController::login);
+    app.post("/auth/refresh", authController::refresh);
     app.post("/auth/logout", authController::logout);
     app.get("/auth/profile", authController::profile, Role.READ, Role.WRITE, Role.ADMIN);
+    app.get("/auth/metrics", authController::metrics, Role.ADMIN);
 
     // Users routes
     app.post("/users/create", usersController::create, Role.ADMIN);
@@ -128,9 +260,29 @@ public class Main {
     app.post("/inventory/create", inventoryController::create, Role.WRITE, Role.ADMIN);
     app.get("/inventory/list", inventoryController::getMany, Role.READ, Role.WRITE, Role.ADMIN);
     app.get("/inventory/list/{id}", inventoryController::getOne, Role.READ, Role.WRITE, Role.ADMIN);
+    app.get("/inventory/search", inventoryController::search, Role.READ, Role.WRITE, Role.ADMIN);
+    app.get("/inventory/stats", inventoryController::stats, Role.READ, Role.WRITE, Role.ADMIN);
     app.put("/inventory/update/{id}", inventoryController::update, Role.WRITE, Role.ADMIN);
     app.delete("/inventory/remove/{id}", inventoryController::delete, Role.WRITE, Role.ADMIN);
+    app.post("/inventory/{id}/adjust", inventoryController::adjust, Role.WRITE, Role.ADMIN);
+    app.post("/inventory/{id}/reserve", inventoryController::reserve, Role.WRITE, Role.ADMIN);
+    app.post("/inventory/{id}/release", inventoryController::release, Role.WRITE, Role.ADMIN);
+    app.post("/inventory/{id}/commit", inventoryController::commit, Role.WRITE, Role.ADMIN);
+    app.post("/inventory/batch", inventoryController::batch, Role.WRITE, Role.ADMIN);
+    app.sse("/inventory/changes", inventoryController::changes, Role.READ, Role.WRITE, Role.ADMIN);
+
+    // Replication routes, authenticated by the replication token rather than a session
+    if (replica) {
+      app.get("/replication/status", follower::status);
+    } else {
+      ReplicationController replicationController =
+          new ReplicationController(
+              replicationLog, inventory, users, authController, replicationToken);
+      app.get("/replication/status", replicationController::status);
+      app.get("/replication/stream", replicationController::stream);
+    }
 
-    app.start(PORT);
+    String port = System.getenv("PORT");
+    app.start(port != null && !port.isBlank() ? Integer.parseInt(port.trim()) : PORT);
   }
 }
@@ -1,8 +1,8 @@
 package ch.heigvd.project3.auth;
 
+import ch.heigvd.project3.persistence.ReplicationLog;
 import ch.heigvd.project3.users.User;
-import de.mkammerer.argon2.Argon2;
-import de.mkammerer.argon2.Argon2Factory;
+import ch.heigvd.project3.users.UserDirectory;
 import io.javalin.http.*;
 import io.javalin.openapi.HttpMethod;
 import io.javalin.openapi.OpenApi;
@@ -12,29 +12,76 @@ import io.javalin.openapi.OpenApiResponse;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jws;
 import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import javax.crypto.SecretKey;
 
 /** Controller for authentication-related actions such as login, logout, and profile retrieval. */
 public class AuthController {
   public static final String SESSION_COOKIE_NAME = "session";
+  public static final String REFRESH_COOKIE_NAME = "refresh";
   public static final String AUTHENTICATED_USER_KEY = "authUser";
+
+  // Access tokens are short-lived and renewed with the refresh token instead of a new login
+  private static final Duration ACCESS_TOKEN_TTL = Duration.ofHours(1);
+  private static final Duration REFRESH_TOKEN_TTL = Duration.ofDays(14);
+  private static final String REFRESH_COOKIE_PATH = "/auth";
+
   private final ConcurrentHashMap<Integer, User> users;
-  private static final SecretKey key = Jwts.SIG.HS256.key().build();
+  private final UserDirectory directory;
+  private final PasswordHasher hasher;
+  private final KeyRing keyRing;
+
+  // Built once: the parser is immutable and thread-safe
+  private final JwtParser parser;
+
+  private final SessionStore sessions;
+  private final TokenCache tokenCache;
+
+  public AuthController(
+      UserDirectory directory, PasswordHasher hasher, KeyRing keyRing, ReplicationLog replication) {
+    this.sessions = new SessionStore(REFRESH_TOKEN_TTL, ACCESS_TOKEN_TTL, replication);
+    this.keyRing = keyRing;
+    this.parser = Jwts.parser().keyLocator(keyRing.locator()).build();
+    this.users = directory.users();
+    this.directory = directory;
+    this.hasher = hasher;
+    this.tokenCache = new TokenCache(this.users, sessions);
+    sessions.startSweeper(Duration.ofMinutes(1));
+  }
+
+  /**
+   * Refuses the access tokens of a session closed on the primary instance, when this instance is a
+   * read replica.
+   *
+   * @param sessionId String, the closed session
+   * @param until long, the time until which its access tokens must be refused, in epoch millis
+   */
+  public void replicateRevocation(String sessionId, long until) {
+    sessions.revoked(sessionId, until);
+  }
 
-  public AuthController(ConcurrentHashMap<Integer, User> users) {
-    this.users = users;
+  /**
+   * @return Map<String, Long>, the sessions closed on this instance whose access tokens are still
+   *     refused, and until when, copied to new read replicas
+   */
+  public Map<String, Long> revokedSessions() {
+    return sessions.revocations();
   }
 
   /**
-   * Handles user login by validating credentials and issuing a JWT upon successful authentication.
+   * Handles user login by validating credentials and issuing a JWT upon successful authentication,
+   * along with a refresh token to renew it. The password is checked on the hashing pool and the
+   * response is completed asynchronously.
    *
    * @param ctx the Javalin context containing the request and response
    * @throws UnauthorizedResponse if the credentials are invalid
+   * @throws TooManyRequestsResponse if too many passwords are already waiting to be checked
    */
   @OpenApi(
       path = "/auth/login",
@@ -51,7 +98,8 @@ public class AuthController {
       tags = {"Authentication"},
       responses = {
         @OpenApiResponse(status = "200", description = "Login successful"),
-        @OpenApiResponse(status = "401", description = "Invalid email or password")
+        @OpenApiResponse(status = "401", description = "Invalid email or password"),
+        @OpenApiResponse(status = "429", description = "Too many logins in progress")
       })
   public void login(Context ctx) {
     User loginUser =
@@ -60,25 +108,63 @@ public class AuthController {
             .check(obj -> obj.passwordHash() != null, "Missing password")
             .get();
 
-    Argon2 argon2 = Argon2Factory.create();
+    User user = directory.findByEmail(loginUser.email());
+    if (user == null) {
+      throw new UnauthorizedResponse("Invalid email or password.");
+    }
 
-    for (User user : users.values()) {
-      if (user.email().equalsIgnoreCase(loginUser.email())) {
-        if (argon2.verify(user.passwordHash(), loginUser.passwordHash().toCharArray())) {
-          ctx.cookie(SESSION_COOKIE_NAME, createJWT(user));
-          ctx.attribute(AUTHENTICATED_USER_KEY, user);
-          ctx.status(HttpStatus.OK);
-          return;
-        }
-        break;
-      }
+    CompletableFuture<Boolean> verification =
+        hasher.verify(user.passwordHash(), loginUser.passwordHash());
+    ctx.future(
+        () ->
+            verification.thenAccept(
+                valid -> {
+                  if (!valid) {
+                    throw new UnauthorizedResponse("Invalid email or password.");
+                  }
+                  SessionStore.Issued session =
+                      sessions.open(user.id(), System.currentTimeMillis());
+                  setSessionCookies(ctx, user, session);
+                  ctx.attribute(AUTHENTICATED_USER_KEY, user);
+                  ctx.status(HttpStatus.OK);
+                }));
+  }
+
+  /**
+   * Renews the access JWT with the refresh token, without checking the password again. The refresh
+   * token is replaced by a new one on every use.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @throws UnauthorizedResponse if the refresh token is missing, expired, revoked or already used
+   */
+  @OpenApi(
+      path = "/auth/refresh",
+      methods = {HttpMethod.POST},
+      summary = "Renew session",
+      description =
+          "Issues a new JWT and a new refresh token in exchange for the current refresh token.",
+      tags = {"Authentication"},
+      responses = {
+        @OpenApiResponse(status = "200", description = "Session renewed"),
+        @OpenApiResponse(status = "401", description = "Invalid refresh token")
+      })
+  public void refresh(Context ctx) {
+    String refreshToken = ctx.cookie(REFRESH_COOKIE_NAME);
+    SessionStore.Issued session = sessions.rotate(refreshToken, System.currentTimeMillis());
+    User user = session == null ? null : users.get(session.userId());
+    if (user == null) {
+      ctx.removeCookie(REFRESH_COOKIE_NAME, REFRESH_COOKIE_PATH);
+      throw new UnauthorizedResponse("Invalid refresh token.");
     }
 
-    throw new UnauthorizedResponse("Invalid email or password.");
+    setSessionCookies(ctx, user, session);
+    ctx.status(HttpStatus.OK);
   }
 
   /**
-   * Handles user logout by removing the session cookie.
+   * Handles user logout by revoking the session and removing its cookies. The refresh token stops
+   * working and the JWTs issued for the session are refused until they expire. Only a session
+   * proven by its current refresh token or by a valid JWT is revoked.
    *
    * @param ctx the Javalin context containing the request and response
    */
@@ -86,11 +172,28 @@ public class AuthController {
       path = "/auth/logout",
       methods = {HttpMethod.POST},
       summary = "User logout",
-      description = "Logs out the user by removing the session cookie.",
+      description = "Logs out the user by revoking the session and removing its cookies.",
       tags = {"Authentication"},
       responses = {@OpenApiResponse(status = "200", description = "Logout successful")})
   public void logout(Context ctx) {
+    long now = System.currentTimeMillis();
+
+    String refreshSession = sessions.close(ctx.cookie(REFRESH_COOKIE_NAME), now);
+
+    String jwt = ctx.cookie(SESSION_COOKIE_NAME);
+    if (jwt != null && !jwt.isBlank()) {
+      try {
+        String accessSession = parser.parseSignedClaims(jwt).getPayload().get("sid", String.class);
+        if (accessSession != null && !accessSession.equals(refreshSession)) {
+          sessions.revoke(accessSession, now);
+        }
+      } catch (JwtException | IllegalArgumentException e) {
+        // Nothing to revoke for an invalid token
+      }
+    }
+
     ctx.removeCookie(SESSION_COOKIE_NAME);
+    ctx.removeCookie(REFRESH_COOKIE_NAME, REFRESH_COOKIE_PATH);
     ctx.status(HttpStatus.OK);
   }
 
@@ -122,26 +225,78 @@ public class AuthController {
     ctx.json(user);
   }
 
+  /**
+   * Sets the access JWT cookie and the refresh token cookie of a session.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @param user the user the session belongs to
+   * @param session the session and its current refresh token
+   */
+  private void setSessionCookies(Context ctx, User user, SessionStore.Issued session) {
+    ctx.cookie(SESSION_COOKIE_NAME, createJWT(user, session.sessionId()));
+    // Only sent to the authentication endpoints and never readable by scripts
+    ctx.cookie(
+        new Cookie(
+            REFRESH_COOKIE_NAME,
+            session.refreshToken(),
+            REFRESH_COOKIE_PATH,
+            (int) REFRESH_TOKEN_TTL.toSeconds(),
+            false,
+            0,
+            true,
+            null,
+            null,
+            SameSite.STRICT));
+  }
+
   /**
    * Creates a JWT for the given user.
    *
    * @param u the user for whom to create the JWT
+   * @param sessionId the session the JWT belongs to, checked against revocations
    * @return the generated JWT as a string
    */
-  private String createJWT(User u) {
+  private String createJWT(User u, String sessionId) {
     Instant now = Instant.now();
     return Jwts.builder()
+        .header()
+        .keyId(keyRing.signingKeyId())
+        .and()
         .subject(String.valueOf(u.id()))
         .claim("id", u.id())
         .claim("email", u.email())
+        .claim("sid", sessionId)
         .issuedAt(Date.from(now))
-        .expiration(Date.from(now.plus(Duration.ofHours(1))))
-        .signWith(key)
+        .expiration(Date.from(now.plus(ACCESS_TOKEN_TTL)))
+        .signWith(keyRing.signingKey())
         .compact();
   }
 
   /**
-   * Validates the provided JWT and returns the associated user if valid.
+   * Reports how often validated JWTs were served from the cache.
+   *
+   * @param ctx the Javalin context containing the request and response
+   */
+  @OpenApi(
+      path = "/auth/metrics",
+      methods = {HttpMethod.GET},
+      summary = "Get JWT cache metrics",
+      description = "Returns the hits, misses, hit rate and size of the validated JWT cache.",
+      tags = {"Authentication"},
+      responses = {
+        @OpenApiResponse(
+            status = "200",
+            description = "Metrics retrieved successfully",
+            content = {@OpenApiContent(from = TokenCacheStats.class)})
+      })
+  public void metrics(Context ctx) {
+    ctx.status(HttpStatus.OK);
+    ctx.json(tokenCache.stats());
+  }
+
+  /**
+   * Validates the provided JWT and returns the associated user if valid. Tokens already verified
+   * for the current version of their user are served from a cache.
    *
    * @param jwt the JWT to validate
    * @return the user associated with the JWT
@@ -152,8 +307,14 @@ public class AuthController {
       throw new UnauthorizedResponse("Missing or empty JWT.");
     }
 
+    long now = System.currentTimeMillis();
+    User cached = tokenCache.get(jwt, now);
+    if (cached != null) {
+      return cached;
+    }
+
     try {
-      Jws<Claims> parsedJwt = Jwts.parser().verifyWith(key).build().parseSignedClaims(jwt);
+      Jws<Claims> parsedJwt = parser.parseSignedClaims(jwt);
       Claims claims = parsedJwt.getPayload();
 
       Integer id = claims.get("id", Integer.class);
@@ -175,6 +336,15 @@ public class AuthController {
         throw new UnauthorizedResponse("Invalid JWT: user does not exist.");
       }
 
+      String sessionId = claims.get("sid", String.class);
+      if (sessionId == null || sessions.isRevoked(sessionId)) {
+        throw new UnauthorizedResponse("Invalid JWT: session closed.");
+      }
+
+      Date expiration = claims.getExpiration();
+      if (expiration != null) {
+        tokenCache.put(jwt, user, sessionId, expiration.getTime(), now);
+      }
       return user;
     } catch (JwtException | IllegalArgumentException e) {
       throw new UnauthorizedResponse("Invalid JWT.");
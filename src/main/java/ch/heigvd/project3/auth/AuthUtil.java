@@ -5,21 +5,47 @@ import de.mkammerer.argon2.Argon2Factory;
 import io.javalin.http.InternalServerErrorResponse;
 
 public class AuthUtil {
+  /** Memory used by one Argon2 computation, in KiB. */
+  public static final int HASH_MEMORY_KIB = 65536;
+
+  private static final int HASH_ITERATIONS = 3;
+  private static final int HASH_PARALLELISM = 1;
+
+  // Stateless, so one instance is shared by all threads
+  private static final Argon2 ARGON2 = Argon2Factory.create();
+
   /**
-   * Creates a hash of the given password using Argon2.
+   * Creates a hash of the given password using Argon2. This is slow and memory hungry on purpose:
+   * request handlers should go through {@link PasswordHasher} instead of calling it directly.
    *
    * @param pass the password to hash
    * @return the hashed password
    * @throws InternalServerErrorResponse if hashing fails
    */
   public static String createHash(String pass) {
-    Argon2 argon2 = Argon2Factory.create();
-
     char[] password = pass.toCharArray();
-    String hash = argon2.hash(3, 65536, 1, password);
-
-    if (!argon2.verify(hash, password)) throw new InternalServerErrorResponse("Hashing failed.");
+    try {
+      return ARGON2.hash(HASH_ITERATIONS, HASH_MEMORY_KIB, HASH_PARALLELISM, password);
+    } catch (IllegalStateException e) {
+      throw new InternalServerErrorResponse("Hashing failed.");
+    } finally {
+      ARGON2.wipeArray(password);
+    }
+  }
 
-    return hash;
+  /**
+   * Checks a password against an Argon2 hash.
+   *
+   * @param hash the stored hash
+   * @param pass the password to check
+   * @return true if the password matches the hash
+   */
+  public static boolean verifyHash(String hash, String pass) {
+    char[] password = pass.toCharArray();
+    try {
+      return ARGON2.verify(hash, password);
+    } finally {
+      ARGON2.wipeArray(password);
+    }
   }
 }
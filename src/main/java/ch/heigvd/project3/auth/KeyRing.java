@@ -0,0 +1,158 @@
+package ch.heigvd.project3.auth;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.LocatorAdapter;
+import io.jsonwebtoken.ProtectedHeader;
+import io.jsonwebtoken.UnsupportedJwtException;
+import io.jsonwebtoken.security.Keys;
+import io.jsonwebtoken.security.WeakKeyException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Key;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.SecretKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HMAC keys used to sign and verify JWTs, identified by a key id written in the "kid" header.
+ *
+ * <p>Instances sharing the same key ring accept each other's tokens. The first key signs new
+ * tokens, the others are only used for verification: to rotate, put a new key first and keep the
+ * previous one until the tokens it signed have expired.
+ *
+ * <p>Keys are read from the file named by JWT_KEYS_FILE, one "kid:base64-secret" per line, or from
+ * JWT_KEYS with the same entries separated by commas. Secrets must be at least 256 bits long.
+ */
+public class KeyRing {
+  private static final Logger LOG = LoggerFactory.getLogger(KeyRing.class);
+
+  private final String signingKeyId;
+  private final Map<String, SecretKey> keys;
+
+  /**
+   * @param keys Map<String, SecretKey>, the keys by id, the first one signing new tokens
+   */
+  public KeyRing(Map<String, SecretKey> keys) {
+    if (keys.isEmpty()) {
+      throw new IllegalArgumentException("A key ring needs at least one key");
+    }
+    this.keys = Map.copyOf(keys);
+    this.signingKeyId = keys.keySet().iterator().next();
+  }
+
+  /**
+   * Loads the key ring configured by the environment. Without configuration, a random key is
+   * generated: tokens are then only valid on this instance and until it restarts.
+   *
+   * @return KeyRing, the configured key ring
+   * @throws IOException if JWT_KEYS_FILE cannot be read
+   * @throws IllegalArgumentException if an entry is malformed or a secret is too short
+   */
+  public static KeyRing fromEnvironment() throws IOException {
+    String file = System.getenv("JWT_KEYS_FILE");
+    if (file != null && !file.isBlank()) {
+      return parse(Files.readAllLines(Path.of(file)));
+    }
+
+    String value = System.getenv("JWT_KEYS");
+    if (value != null && !value.isBlank()) {
+      return parse(List.of(value.split(",")));
+    }
+
+    LOG.warn("No JWT_KEYS or JWT_KEYS_FILE set, using a random key for this instance only");
+    Map<String, SecretKey> random = new LinkedHashMap<>();
+    random.put("local", Jwts.SIG.HS256.key().build());
+    return new KeyRing(random);
+  }
+
+  /**
+   * @return boolean, true if JWT_KEYS_FILE or JWT_KEYS is set, so that the key ring can be shared
+   */
+  public static boolean isConfigured() {
+    String file = System.getenv("JWT_KEYS_FILE");
+    String value = System.getenv("JWT_KEYS");
+    return (file != null && !file.isBlank()) || (value != null && !value.isBlank());
+  }
+
+  /**
+   * Parses "kid:base64-secret" entries. Blank entries and lines starting with # are ignored.
+   *
+   * @param entries List<String>, the entries, the signing key first
+   * @return KeyRing, the parsed key ring
+   * @throws IllegalArgumentException if an entry is malformed or a secret is too short
+   */
+  static KeyRing parse(List<String> entries) {
+    Map<String, SecretKey> keys = new LinkedHashMap<>();
+    for (String entry : entries) {
+      String trimmed = entry.trim();
+      if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+        continue;
+      }
+
+      int separator = trimmed.indexOf(':');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("JWT key entries must look like kid:base64-secret");
+      }
+      String keyId = trimmed.substring(0, separator);
+
+      SecretKey key;
+      try {
+        key = Keys.hmacShaKeyFor(Base64.getDecoder().decode(trimmed.substring(separator + 1)));
+      } catch (WeakKeyException e) {
+        throw new IllegalArgumentException("JWT key " + keyId + " must be at least 256 bits", e);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("JWT key " + keyId + " is not valid base64", e);
+      }
+
+      if (keys.putIfAbsent(keyId, key) != null) {
+        throw new IllegalArgumentException("Duplicate JWT key id " + keyId);
+      }
+    }
+    return new KeyRing(keys);
+  }
+
+  /**
+   * @return String, the id of the key signing new tokens
+   */
+  public String signingKeyId() {
+    return signingKeyId;
+  }
+
+  /**
+   * @return SecretKey, the key signing new tokens
+   */
+  public SecretKey signingKey() {
+    return keys.get(signingKeyId);
+  }
+
+  /**
+   * @return int, the number of keys accepted for verification
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+   * Finds the verification key named by the "kid" header of a token.
+   *
+   * @return LocatorAdapter<Key>, the locator to give to the JWT parser
+   */
+  LocatorAdapter<Key> locator() {
+    return new LocatorAdapter<>() {
+      @Override
+      protected Key locate(ProtectedHeader header) {
+        String keyId = header.getKeyId();
+        SecretKey key = keyId == null ? null : keys.get(keyId);
+        if (key == null) {
+          throw new UnsupportedJwtException("Unknown JWT key id.");
+        }
+        return key;
+      }
+    };
+  }
+}
@@ -0,0 +1,122 @@
+package ch.heigvd.project3.auth;
+
+import io.javalin.http.TooManyRequestsResponse;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs Argon2 hashing and verification on a small dedicated pool instead of the Jetty request
+ * threads.
+ *
+ * <p>Every computation allocates {@link AuthUtil#HASH_MEMORY_KIB} of native memory, so the number
+ * of threads is capped by a memory budget. Work waiting for a thread is kept in a bounded queue;
+ * when that queue is full the request is rejected with 429 rather than piling up, so a burst of
+ * logins cannot exhaust the server threads or the memory.
+ */
+public class PasswordHasher {
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * @param threads int, the number of hashes computed at the same time
+   * @param queueCapacity int, the number of hashes allowed to wait for a thread
+   */
+  public PasswordHasher(int threads, int queueCapacity) {
+    AtomicInteger counter = new AtomicInteger();
+    this.executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            runnable -> {
+              Thread thread = new Thread(runnable, "password-hasher-" + counter.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Creates a hasher configured by the HASH_THREADS, HASH_MEMORY_MB and HASH_QUEUE_SIZE environment
+   * variables. The number of threads is lowered if the memory budget cannot hold them all.
+   *
+   * @return PasswordHasher, the configured hasher
+   */
+  public static PasswordHasher fromEnvironment() {
+    int threads = intFromEnvironment("HASH_THREADS", Runtime.getRuntime().availableProcessors());
+    int memoryMb = intFromEnvironment("HASH_MEMORY_MB", 512);
+    int queueSize = intFromEnvironment("HASH_QUEUE_SIZE", 64);
+
+    int affordable = Math.max(1, memoryMb * 1024 / AuthUtil.HASH_MEMORY_KIB);
+    return new PasswordHasher(Math.max(1, Math.min(threads, affordable)), Math.max(1, queueSize));
+  }
+
+  /**
+   * Hashes a password asynchronously.
+   *
+   * @param password String, the password to hash
+   * @return CompletableFuture<String>, completed with the hash on a hashing thread
+   * @throws TooManyRequestsResponse if too many hashes are already waiting
+   */
+  public CompletableFuture<String> hash(String password) {
+    return submit(() -> AuthUtil.createHash(password));
+  }
+
+  /**
+   * Checks a password against a hash asynchronously.
+   *
+   * @param hash String, the stored hash
+   * @param password String, the password to check
+   * @return CompletableFuture<Boolean>, completed with the result on a hashing thread
+   * @throws TooManyRequestsResponse if too many hashes are already waiting
+   */
+  public CompletableFuture<Boolean> verify(String hash, String password) {
+    return submit(() -> AuthUtil.verifyHash(hash, password));
+  }
+
+  /**
+   * @return int, the number of computations waiting for a thread
+   */
+  public int queueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Queues a computation, shedding it if the queue is full.
+   *
+   * @param task Supplier<T>, the computation
+   * @return CompletableFuture<T>, completed with the result of the computation
+   */
+  private <T> CompletableFuture<T> submit(Supplier<T> task) {
+    try {
+      return CompletableFuture.supplyAsync(task, executor);
+    } catch (RejectedExecutionException e) {
+      throw new TooManyRequestsResponse("Server busy, try again later.");
+    }
+  }
+
+  /**
+   * Reads a positive integer from the environment.
+   *
+   * @param name String, the variable name
+   * @param defaultValue int, used when the variable is missing or invalid
+   * @return int, the value
+   */
+  private static int intFromEnvironment(String name, int defaultValue) {
+    String value = System.getenv(name);
+    if (value == null || value.isBlank()) {
+      return defaultValue;
+    }
+    try {
+      int parsed = Integer.parseInt(value.trim());
+      return parsed > 0 ? parsed : defaultValue;
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+}
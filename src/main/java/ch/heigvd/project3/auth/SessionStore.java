@@ -0,0 +1,248 @@
+package ch.heigvd.project3.auth;
+
+import ch.heigvd.project3.persistence.ReplicationLog;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory table of login sessions and their refresh tokens.
+ *
+ * <p>A refresh token is "sessionId.secret". Every refresh replaces the secret, so a token can only
+ * be used once; presenting an already rotated secret means the token was copied, and the whole
+ * session is revoked. Revoked sessions are remembered until the access tokens issued for them have
+ * expired, so that those tokens are refused as well. Revocations are also published to the read
+ * replicas, which accept the same access tokens.
+ */
+class SessionStore {
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private record Session(int userId, String secret, long expiresAt) {}
+
+  /** A session together with the refresh token that currently unlocks it. */
+  record Issued(int userId, String sessionId, String refreshToken) {}
+
+  private final Duration refreshTtl;
+  private final Duration accessTtl;
+  private final ReplicationLog replication;
+  private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+  // Session id -> time until which access tokens of that session must be refused
+  private final ConcurrentHashMap<String, Long> revoked = new ConcurrentHashMap<>();
+
+  /**
+   * @param refreshTtl Duration, how long a refresh token stays valid if it is not used
+   * @param accessTtl Duration, the lifetime of the access tokens issued for a session
+   * @param replication ReplicationLog, receives the revocations for the read replicas
+   */
+  SessionStore(Duration refreshTtl, Duration accessTtl, ReplicationLog replication) {
+    this.refreshTtl = refreshTtl;
+    this.accessTtl = accessTtl;
+    this.replication = replication;
+  }
+
+  /**
+   * Opens a new session for a user that just logged in.
+   *
+   * @param userId int, the user
+   * @param now long, the current time in milliseconds
+   * @return Issued, the session id and its first refresh token
+   */
+  Issued open(int userId, long now) {
+    String sessionId = randomToken(16);
+    String secret = randomToken(32);
+    sessions.put(sessionId, new Session(userId, secret, now + refreshTtl.toMillis()));
+    return new Issued(userId, sessionId, sessionId + "." + secret);
+  }
+
+  /**
+   * Exchanges a refresh token for a new one.
+   *
+   * @param refreshToken String, the refresh token presented by the client
+   * @param now long, the current time in milliseconds
+   * @return Issued, the session and its new refresh token, or null if the token is not valid
+   */
+  Issued rotate(String refreshToken, long now) {
+    String sessionId = sessionIdOf(refreshToken);
+    if (sessionId == null) {
+      return null;
+    }
+    String presented = refreshToken.substring(sessionId.length() + 1);
+    String secret = randomToken(32);
+    boolean[] rejected = new boolean[1];
+
+    Session rotated =
+        sessions.computeIfPresent(
+            sessionId,
+            (key, session) -> {
+              if (session.expiresAt() <= now || !sameSecret(session.secret(), presented)) {
+                // Expired, or an already used token replayed: the session is closed either way
+                rejected[0] = true;
+                return null;
+              }
+              return new Session(session.userId(), secret, now + refreshTtl.toMillis());
+            });
+
+    if (rejected[0]) {
+      // The session was removed by the update above
+      recordRevocation(sessionId, now);
+    }
+    if (rotated == null) {
+      return null;
+    }
+    return new Issued(rotated.userId(), sessionId, sessionId + "." + secret);
+  }
+
+  /**
+   * Closes the session of a refresh token, if the token is its current one: its refresh token stops
+   * working and its access tokens are refused until they expire. A token naming an unknown session
+   * or carrying another secret changes nothing, so that a forged cookie cannot fill the revocation
+   * table nor the replication stream.
+   *
+   * @param refreshToken String, the refresh token presented by the client
+   * @param now long, the current time in milliseconds
+   * @return String, the id of the closed session, or null if nothing was closed
+   */
+  String close(String refreshToken, long now) {
+    String sessionId = sessionIdOf(refreshToken);
+    if (sessionId == null) {
+      return null;
+    }
+    String presented = refreshToken.substring(sessionId.length() + 1);
+    Session session = sessions.get(sessionId);
+    if (session == null
+        || !sameSecret(session.secret(), presented)
+        || !sessions.remove(sessionId, session)) {
+      return null;
+    }
+    recordRevocation(sessionId, now);
+    return sessionId;
+  }
+
+  /**
+   * Closes a session named by a verified access token: its refresh token stops working and its
+   * access tokens are refused until they expire. Nothing is recorded if the session is not open.
+   *
+   * @param sessionId String, the session to close
+   * @param now long, the current time in milliseconds
+   */
+  void revoke(String sessionId, long now) {
+    if (sessions.remove(sessionId) != null) {
+      recordRevocation(sessionId, now);
+    }
+  }
+
+  /**
+   * Refuses the access tokens of a session that was just removed, here and on the read replicas.
+   *
+   * @param sessionId String, the removed session
+   * @param now long, the current time in milliseconds
+   */
+  private void recordRevocation(String sessionId, long now) {
+    long until = now + accessTtl.toMillis();
+    revoked.put(sessionId, until);
+    replication.sessionRevoked(sessionId, until);
+  }
+
+  /**
+   * Refuses the access tokens of a session closed by the primary instance.
+   *
+   * @param sessionId String, the closed session
+   * @param until long, the time until which its access tokens must be refused
+   */
+  void revoked(String sessionId, long until) {
+    revoked.merge(sessionId, until, Math::max);
+  }
+
+  /**
+   * @return Map<String, Long>, the revoked sessions and the time until which their access tokens
+   *     are refused, a live read-only view
+   */
+  Map<String, Long> revocations() {
+    return Collections.unmodifiableMap(revoked);
+  }
+
+  /**
+   * @param sessionId String, the session of an access token
+   * @return boolean, true if the session was closed
+   */
+  boolean isRevoked(String sessionId) {
+    return revoked.containsKey(sessionId);
+  }
+
+  /**
+   * Removes expired sessions and revocations that no access token can need anymore.
+   *
+   * @param now long, the current time in milliseconds
+   */
+  void sweep(long now) {
+    sessions.values().removeIf(session -> session.expiresAt() <= now);
+    revoked.values().removeIf(until -> until <= now);
+  }
+
+  /**
+   * Sweeps the table at a fixed interval on a background thread.
+   *
+   * @param interval Duration, the time between two sweeps
+   */
+  void startSweeper(Duration interval) {
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "session-sweeper");
+              thread.setDaemon(true);
+              return thread;
+            });
+    scheduler.scheduleWithFixedDelay(
+        () -> sweep(System.currentTimeMillis()),
+        interval.toMillis(),
+        interval.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Extracts the session id of a refresh token.
+   *
+   * @param refreshToken String, the refresh token
+   * @return String, the session id, or null if the token is malformed
+   */
+  static String sessionIdOf(String refreshToken) {
+    if (refreshToken == null) {
+      return null;
+    }
+    int separator = refreshToken.indexOf('.');
+    return separator <= 0 || separator == refreshToken.length() - 1
+        ? null
+        : refreshToken.substring(0, separator);
+  }
+
+  /**
+   * Compares two secrets in constant time.
+   *
+   * @param expected String, the stored secret
+   * @param presented String, the secret sent by the client
+   * @return boolean, true if they are equal
+   */
+  private static boolean sameSecret(String expected, String presented) {
+    return MessageDigest.isEqual(
+        expected.getBytes(StandardCharsets.UTF_8), presented.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param bytes int, the amount of randomness
+   * @return String, a random URL-safe token
+   */
+  private static String randomToken(int bytes) {
+    byte[] random = new byte[bytes];
+    RANDOM.nextBytes(random);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+  }
+}
@@ -0,0 +1,90 @@
+package ch.heigvd.project3.auth;
+
+import ch.heigvd.project3.users.User;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of JWTs whose signature and claims have already been verified. A hit maps the raw token to
+ * its user without decoding the token or recomputing its HMAC again.
+ *
+ * <p>Each entry is tagged with the version the user had when the token was verified. Updating or
+ * deleting a user changes or removes that version, which invalidates every cached token of the
+ * user: the next request verifies its token again. Entries of a session closed by a logout are
+ * dropped as well.
+ */
+class TokenCache {
+  // Upper bound on the number of tokens kept
+  private static final int MAX_ENTRIES = 10_000;
+
+  private record Entry(int userId, long userVersion, String sessionId, long expiresAt) {}
+
+  private final ConcurrentHashMap<Integer, User> users;
+  private final SessionStore sessions;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  TokenCache(ConcurrentHashMap<Integer, User> users, SessionStore sessions) {
+    this.users = users;
+    this.sessions = sessions;
+  }
+
+  /**
+   * Looks a token up.
+   *
+   * @param token String, the raw JWT
+   * @param now long, the current time in milliseconds
+   * @return User, the user the token was verified for, or null if the token must be verified
+   */
+  User get(String token, long now) {
+    Entry entry = entries.get(token);
+    if (entry != null) {
+      User user = users.get(entry.userId());
+      if (entry.expiresAt() > now
+          && user != null
+          && user.version() == entry.userVersion()
+          && !sessions.isRevoked(entry.sessionId())) {
+        hits.increment();
+        return user;
+      }
+      entries.remove(token, entry);
+    }
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * Stores a verified token. When the cache is full, expired entries are dropped first, then
+   * arbitrary ones.
+   *
+   * @param token String, the raw JWT
+   * @param user User, the user it was verified for
+   * @param sessionId String, the session the token belongs to
+   * @param expiresAt long, the expiration of the token in milliseconds
+   * @param now long, the current time in milliseconds
+   */
+  void put(String token, User user, String sessionId, long expiresAt, long now) {
+    if (entries.size() >= MAX_ENTRIES) {
+      entries.values().removeIf(entry -> entry.expiresAt() <= now);
+      Iterator<String> iterator = entries.keySet().iterator();
+      while (entries.size() >= MAX_ENTRIES - MAX_ENTRIES / 8 && iterator.hasNext()) {
+        iterator.next();
+        iterator.remove();
+      }
+    }
+    entries.put(token, new Entry(user.id(), user.version(), sessionId, expiresAt));
+  }
+
+  /**
+   * @return TokenCacheStats, the hit and miss counters and the current size
+   */
+  TokenCacheStats stats() {
+    long hitCount = hits.sum();
+    long missCount = misses.sum();
+    long total = hitCount + missCount;
+    return new TokenCacheStats(
+        hitCount, missCount, total == 0 ? 0 : (double) hitCount / total, entries.size());
+  }
+}
@@ -0,0 +1,3 @@
+package ch.heigvd.project3.auth;
+
+public record TokenCacheStats(long hits, long misses, double hitRate, int size) {}
@@ -0,0 +1,7 @@
+package ch.heigvd.project3.inventory;
+
+/**
+ * Represents one operation of an inventory batch. Depending on op ("create", "update", "delete" or
+ * "adjust"), only some of the other fields are used.
+ */
+public record BatchOperation(String op, Integer id, String name, Integer num, Integer delta) {}
@@ -0,0 +1,553 @@
+package ch.heigvd.project3.inventory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Inventory store keeping items in primitive arrays instead of one record per item, for inventories
+ * of millions of items.
+ *
+ * <p>Every item gets a slot, reused after it is removed. An open addressing table with linear
+ * probing maps an id to its slot, without boxing. The columns hold, per slot, the id, the state and
+ * the reference of the name in a {@link NameArena}. The state packs a lock bit, the version (31
+ * bits) and the quantity (32 bits) in one long, so that an item is locked for an update with a
+ * single compare-and-set and its quantity and version always change together.
+ *
+ * <p>Inserting and removing items, which can move table entries or grow the arrays, holds the write
+ * side of a StampedLock. Updates of existing items share the read side and lock their slot only, so
+ * updates of different items run in parallel. Reads take no lock: they validate an optimistic stamp
+ * and check that the state did not change while the name was read, and only retry under the read
+ * lock if a writer interfered.
+ *
+ * <p>Items are rebuilt on every read, so reads allocate the record, the name and the ETag that the
+ * map store keeps instead.
+ *
+ * <p>Names are limited to 65535 UTF-8 bytes and versions to 31 bits. The room for a name is
+ * reserved before a compute function runs, so once it returned only an item over these limits can
+ * fail to be stored.
+ */
+public class CompactInventoryStore implements InventoryStore {
+  private static final VarHandle STATES = MethodHandles.arrayElementVarHandle(long[].class);
+
+  private static final long LOCKED = 1L << 63;
+  private static final long MAX_VERSION = Integer.MAX_VALUE;
+
+  // Key of an empty table entry and id of a free slot
+  private static final int EMPTY = -1;
+
+  // Slots read under the read lock at a time while iterating
+  private static final int ITERATION_BATCH = 1024;
+
+  private final StampedLock structure = new StampedLock();
+
+  // Table entries as (id, slot) pairs, the capacity is a power of two
+  private int[] table = emptyTable(16);
+
+  // Columns indexed by slot
+  private int[] ids = new int[16];
+  private long[] states = new long[16];
+  private int[] names = new int[16];
+
+  // Slots below this mark have been used at least once
+  private int slots;
+  private int[] freeSlots = new int[16];
+  private int freeCount;
+
+  private volatile int size;
+  private volatile NameArena arena = new NameArena();
+
+  @Override
+  public Item get(int id) {
+    long stamp = structure.tryOptimisticRead();
+    if (stamp != 0) {
+      int[] table = this.table;
+      long[] states = this.states;
+      int[] names = this.names;
+      NameArena arena = this.arena;
+      int slot = find(table, id);
+      if (slot < 0) {
+        if (structure.validate(stamp)) {
+          return null;
+        }
+      } else if (slot < states.length && slot < names.length) {
+        long state = (long) STATES.getAcquire(states, slot);
+        int name = names[slot];
+        VarHandle.loadLoadFence();
+        if ((state & LOCKED) == 0
+            && (long) STATES.getAcquire(states, slot) == state
+            && structure.validate(stamp)) {
+          return item(id, arena.read(name), state);
+        }
+      }
+    }
+
+    stamp = structure.readLock();
+    try {
+      int slot = find(table, id);
+      return slot < 0 ? null : read(slot);
+    } finally {
+      structure.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public boolean contains(int id) {
+    long stamp = structure.tryOptimisticRead();
+    if (stamp != 0) {
+      boolean found = find(table, id) >= 0;
+      if (structure.validate(stamp)) {
+        return found;
+      }
+    }
+
+    stamp = structure.readLock();
+    try {
+      return find(table, id) >= 0;
+    } finally {
+      structure.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Item put(Item item) {
+    Item[] previous = new Item[1];
+    Item replaced =
+        computeIfPresent(
+            item.id(),
+            current -> {
+              previous[0] = current;
+              return item;
+            });
+    if (replaced != null) {
+      return previous[0];
+    }
+
+    long stamp = structure.writeLock();
+    try {
+      // Inserted by another thread in the meantime
+      int slot = find(table, item.id());
+      if (slot >= 0) {
+        Item current = read(slot);
+        write(slot, current, item);
+        return current;
+      }
+      insert(item);
+      return null;
+    } finally {
+      structure.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Item remove(int id) {
+    long stamp = structure.writeLock();
+    try {
+      int slot = find(table, id);
+      return slot < 0 ? null : removeSlot(id, slot);
+    } finally {
+      structure.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Item remove(int id, Consumer<Item> check) {
+    long stamp = structure.writeLock();
+    try {
+      int slot = find(table, id);
+      if (slot < 0) {
+        return null;
+      }
+      // No update holds a slot lock while the write lock is held, so the item cannot change
+      check.accept(read(slot));
+      return removeSlot(id, slot);
+    } finally {
+      structure.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Removes the item in a slot and frees the slot. Called with the write lock held.
+   *
+   * @param id int, the id of the item
+   * @param slot int, its slot
+   * @return Item, the removed item
+   */
+  private Item removeSlot(int id, int slot) {
+    // No update holds a slot lock while the write lock is held
+    Item removed = read(slot);
+    unindex(id);
+    arena.release(names[slot]);
+    ids[slot] = EMPTY;
+    states[slot] = 0;
+    if (freeCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+    }
+    freeSlots[freeCount++] = slot;
+    size--;
+    compactNamesIfWasteful();
+    return removed;
+  }
+
+  @Override
+  public Item computeIfAbsent(int id, IntFunction<Item> create) {
+    Item existing = get(id);
+    if (existing != null) {
+      return existing;
+    }
+
+    long stamp = structure.writeLock();
+    try {
+      int slot = find(table, id);
+      if (slot >= 0) {
+        return read(slot);
+      }
+      // Fails before the function if the name cannot be stored, as it may have side effects
+      NameArena arena = this.arena;
+      arena.reserve();
+      try {
+        Item created = create.apply(id);
+        checkId(created, id);
+        insert(created);
+        return created;
+      } finally {
+        arena.unreserve();
+      }
+    } finally {
+      structure.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Item computeIfPresent(int id, UnaryOperator<Item> update) {
+    long stamp = structure.readLock();
+    try {
+      int slot = find(table, id);
+      if (slot < 0) {
+        return null;
+      }
+
+      // Fails before the function if a new name cannot be stored, as it may have side effects.
+      // The arena is only replaced under the write lock.
+      NameArena arena = this.arena;
+      arena.reserve();
+      long state = lockSlot(slot);
+      long next = state;
+      try {
+        Item current = item(id, arena.read(names[slot]), state);
+        Item updated = update.apply(current);
+        checkId(updated, id);
+        long packed = pack(updated);
+        if (!updated.name().equals(current.name())) {
+          int previousName = names[slot];
+          names[slot] = arena.intern(updated.name());
+          arena.release(previousName);
+        }
+        next = packed;
+        return updated;
+      } finally {
+        // Also unlocks the slot, restoring the previous state if the update failed
+        STATES.setRelease(states, slot, next);
+        arena.unreserve();
+      }
+    } finally {
+      structure.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public Iterator<Item> iterator() {
+    return new Iterator<>() {
+      private final List<Item> batch = new ArrayList<>(ITERATION_BATCH);
+      private int index;
+      private int nextSlot;
+
+      @Override
+      public boolean hasNext() {
+        while (index == batch.size()) {
+          if (!fill()) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      @Override
+      public Item next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return batch.get(index++);
+      }
+
+      /**
+       * Reads the items of the next slots. An item keeps its slot while it is stored, so it is
+       * returned at most once.
+       *
+       * @return boolean, false once every slot has been read
+       */
+      private boolean fill() {
+        long stamp = structure.readLock();
+        try {
+          if (nextSlot >= slots) {
+            return false;
+          }
+          batch.clear();
+          index = 0;
+          int end = Math.min(slots, nextSlot + ITERATION_BATCH);
+          for (int slot = nextSlot; slot < end; slot++) {
+            if (ids[slot] != EMPTY) {
+              batch.add(read(slot));
+            }
+          }
+          nextSlot = end;
+          return true;
+        } finally {
+          structure.unlockRead(stamp);
+        }
+      }
+    };
+  }
+
+  /**
+   * Reads the item in a slot, waiting for an update of it to finish. Called with the lock held.
+   *
+   * @param slot int, a used slot
+   * @return Item, its item
+   */
+  private Item read(int slot) {
+    for (int spins = 0; ; spins++) {
+      long state = (long) STATES.getAcquire(states, slot);
+      if ((state & LOCKED) == 0) {
+        int name = names[slot];
+        VarHandle.loadLoadFence();
+        if ((long) STATES.getAcquire(states, slot) == state) {
+          return item(ids[slot], arena.read(name), state);
+        }
+      }
+      backOff(spins);
+    }
+  }
+
+  /**
+   * Locks a slot by setting the lock bit of its state. Called with the read lock held.
+   *
+   * @param slot int, a used slot
+   * @return long, the state of the slot before it was locked
+   */
+  private long lockSlot(int slot) {
+    for (int spins = 0; ; spins++) {
+      long state = (long) STATES.getVolatile(states, slot);
+      if ((state & LOCKED) == 0 && STATES.compareAndSet(states, slot, state, state | LOCKED)) {
+        return state;
+      }
+      backOff(spins);
+    }
+  }
+
+  /**
+   * Overwrites the item in a slot. Called with the write lock held.
+   *
+   * @param slot int, a used slot
+   * @param current Item, the item in the slot
+   * @param item Item, the item replacing it
+   */
+  private void write(int slot, Item current, Item item) {
+    long packed = pack(item);
+    if (!item.name().equals(current.name())) {
+      int previousName = names[slot];
+      names[slot] = arena.intern(item.name());
+      arena.release(previousName);
+    }
+    states[slot] = packed;
+  }
+
+  /**
+   * Stores a new item in a free slot. Called with the write lock held.
+   *
+   * @param item Item, an item whose id is not stored
+   */
+  private void insert(Item item) {
+    if (item.id() < 0) {
+      throw new IllegalArgumentException("Negative item id " + item.id());
+    }
+    long packed = pack(item);
+    int name = arena.intern(item.name());
+
+    int slot = freeCount > 0 ? freeSlots[--freeCount] : slots++;
+    if (slot == ids.length) {
+      int length = ids.length + (ids.length >> 1);
+      ids = Arrays.copyOf(ids, length);
+      states = Arrays.copyOf(states, length);
+      names = Arrays.copyOf(names, length);
+    }
+    ids[slot] = item.id();
+    names[slot] = name;
+    states[slot] = packed;
+
+    if ((size + 1) * 4L > (table.length / 2) * 3L) {
+      table = grow(table);
+    }
+    int mask = table.length / 2 - 1;
+    int i = hash(item.id()) & mask;
+    while (table[2 * i] != EMPTY) {
+      i = (i + 1) & mask;
+    }
+    table[2 * i] = item.id();
+    table[2 * i + 1] = slot;
+    size++;
+  }
+
+  /**
+   * Removes an id from the table, shifting back the entries that follow it. Called with the write
+   * lock held.
+   *
+   * @param id int, a stored id
+   */
+  private void unindex(int id) {
+    int mask = table.length / 2 - 1;
+    int i = hash(id) & mask;
+    while (table[2 * i] != id) {
+      i = (i + 1) & mask;
+    }
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      int key = table[2 * j];
+      if (key == EMPTY) {
+        break;
+      }
+      int home = hash(key) & mask;
+      // The entry at j can fill the hole at i if its home position is not between them
+      boolean between = i <= j ? i < home && home <= j : i < home || home <= j;
+      if (!between) {
+        table[2 * i] = key;
+        table[2 * i + 1] = table[2 * j + 1];
+        i = j;
+      }
+    }
+    table[2 * i] = EMPTY;
+  }
+
+  /**
+   * Copies the live names to a new arena once more bytes are wasted than used. Called with the
+   * write lock held, so that no reader holds a reference into the old arena.
+   */
+  private void compactNamesIfWasteful() {
+    NameArena current = arena;
+    long wasted = current.wastedBytes();
+    if (wasted < NameArena.CHUNK_SIZE || wasted < current.liveBytes()) {
+      return;
+    }
+    NameArena compacted = new NameArena();
+    for (int slot = 0; slot < slots; slot++) {
+      if (ids[slot] != EMPTY) {
+        names[slot] = compacted.intern(current.read(names[slot]));
+      }
+    }
+    arena = compacted;
+  }
+
+  /**
+   * @param table int[], the current table
+   * @return int[], a table with twice the capacity holding the same entries
+   */
+  private static int[] grow(int[] table) {
+    // The new capacity is the length of the current array, which holds two ints per entry
+    int[] grown = emptyTable(table.length);
+    int mask = table.length - 1;
+    for (int i = 0; i < table.length; i += 2) {
+      int key = table[i];
+      if (key != EMPTY) {
+        int j = hash(key) & mask;
+        while (grown[2 * j] != EMPTY) {
+          j = (j + 1) & mask;
+        }
+        grown[2 * j] = key;
+        grown[2 * j + 1] = table[i + 1];
+      }
+    }
+    return grown;
+  }
+
+  /**
+   * Looks an id up. Bounded by the capacity, so that a table read without a lock cannot loop.
+   *
+   * @param table int[], the table
+   * @param id int, the id to look for
+   * @return int, its slot, or -1 if it is not stored
+   */
+  private static int find(int[] table, int id) {
+    int mask = table.length / 2 - 1;
+    int i = hash(id) & mask;
+    for (int probes = 0; probes <= mask; probes++) {
+      int key = table[2 * i];
+      if (key == id) {
+        return table[2 * i + 1];
+      }
+      if (key == EMPTY) {
+        return -1;
+      }
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * @param capacity int, the number of entries, a power of two
+   * @return int[], a table without entries
+   */
+  private static int[] emptyTable(int capacity) {
+    int[] table = new int[2 * capacity];
+    Arrays.fill(table, EMPTY);
+    return table;
+  }
+
+  private static int hash(int id) {
+    int h = id * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * @param item Item, an item to store
+   * @return long, its version and quantity packed in a state
+   * @throws IllegalArgumentException if the version does not fit in 31 bits
+   */
+  private static long pack(Item item) {
+    if (item.version() < 0 || item.version() > MAX_VERSION) {
+      throw new IllegalArgumentException("Item version out of range " + item.version());
+    }
+    return (item.version() << 32) | (item.num() & 0xFFFFFFFFL);
+  }
+
+  private static Item item(int id, String name, long state) {
+    return Item.versioned(id, name, (int) state, (state & ~LOCKED) >>> 32);
+  }
+
+  private static void checkId(Item item, int id) {
+    if (item.id() != id) {
+      throw new IllegalArgumentException("Item id " + item.id() + " stored under " + id);
+    }
+  }
+
+  private static void backOff(int spins) {
+    if (spins < 64) {
+      Thread.onSpinWait();
+    } else {
+      Thread.yield();
+    }
+  }
+}
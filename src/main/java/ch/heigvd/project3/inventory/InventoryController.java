@@ -1,6 +1,13 @@
 package ch.heigvd.project3.inventory;
 
+import ch.heigvd.project3.persistence.Mutation;
+import ch.heigvd.project3.persistence.ReplicationLog;
+import ch.heigvd.project3.persistence.WriteAheadLog;
+import ch.heigvd.project3.util.ETagUtil;
+import ch.heigvd.project3.util.JsonStreamUtil;
 import io.javalin.http.*;
+import io.javalin.http.sse.SseClient;
+import io.javalin.json.JsonMapper;
 import io.javalin.openapi.HttpMethod;
 import io.javalin.openapi.OpenApi;
 import io.javalin.openapi.OpenApiContent;
@@ -8,28 +15,181 @@ import io.javalin.openapi.OpenApiParam;
 import io.javalin.openapi.OpenApiRequestBody;
 import io.javalin.openapi.OpenApiResponse;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
 
 /**
  * Controller for inventory-related actions such as creating, retrieving, updating, and deleting
  * items.
  */
 public class InventoryController {
-  // TODO : Create an object seems to facilitate the database, i store int, item so we are also able
-  // to expand with ease our item, for example we could stock the number of reserved item there and
-  // it will be easier
-  private final ConcurrentHashMap<Integer, Item> inventory;
+  // Page size used when a cursor is given without a limit, and the largest page allowed
+  private static final int DEFAULT_PAGE_SIZE = 100;
+  private static final int MAX_PAGE_SIZE = 1000;
+
+  // Number of search results returned without a limit, and the largest number allowed
+  private static final int DEFAULT_SEARCH_LIMIT = 20;
+  private static final int MAX_SEARCH_LIMIT = 100;
+
+  // Lifetime of a reservation when none is requested, and the longest allowed
+  private static final int DEFAULT_RESERVATION_SECONDS = 300;
+  private static final int MAX_RESERVATION_SECONDS = 3600;
+
+  // Largest number of operations accepted in one batch
+  private static final int MAX_BATCH_SIZE = 5000;
+
+  // Longest item name accepted, in chars, so that every store can hold it (the compact store takes
+  // up to 65535 UTF-8 bytes) and it is rejected before any side effect of the write
+  private static final int MAX_NAME_LENGTH = 256;
+
+  // Longest silence on the change stream before a keep-alive comment is sent
+  private static final long KEEP_ALIVE_MILLIS = 15_000;
+
+  private final InventoryStore inventory;
+
+  // Open holds on item units, the available units of an item are its quantity minus the reserved
+  // ones
+  private final Reservations reservations = new Reservations();
+
+  // Item ids in ascending order, used to serve pages in O(page size)
+  private final ConcurrentSkipListSet<Integer> ids = new ConcurrentSkipListSet<>();
+
+  // Secondary index: normalized (lower-case) item name -> item id, kept in step with inventory
+  private final ConcurrentHashMap<String, Integer> nameIndex = new ConcurrentHashMap<>();
+
+  // (quantity, id) packed in a long for every item, used to serve quantity ranges in
+  // O(log n + page size). Like the name index, it changes inside the map entry update of the item
+  private final ConcurrentSkipListSet<Long> quantities = new ConcurrentSkipListSet<>();
+
+  // Totals behind the stats, changed with the quantity index
+  private final InventoryCounters counters = new InventoryCounters();
+
+  // Trigrams and word starts of the item names, for partial name search
+  private final ItemSearchIndex searchIndex;
 
   private final AtomicInteger uniqueId = new AtomicInteger(1);
 
-  public InventoryController(ConcurrentHashMap<Integer, Item> inventory) {
+  private final WriteAheadLog wal;
+
+  // Feeds the read replicas, published to after the event bus
+  private final ReplicationLog replication;
+
+  // Store revision, bumped by the event bus after every create, update and delete has been applied
+  // to the map
+  private final AtomicLong revision = new AtomicLong();
+
+  // Publishes every change with its revision, feeding the change stream
+  private final InventoryEventBus events;
+
+  // Distinguishes revisions of this process from those of a previous run, whose counter started
+  // from zero as well
+  private final String revisionEpoch = Long.toString(System.currentTimeMillis(), 36);
+
+  // Single writes share the read side; a batch holds the write side so that it is validated and
+  // applied without any other write in between
+  private final ReentrantReadWriteLock batchLock = new ReentrantReadWriteLock();
+
+  // Encoded bodies of recent list responses, keyed by revision
+  private final InventoryResponseCache responseCache = new InventoryResponseCache();
+
+  public InventoryController(
+      InventoryStore inventory, WriteAheadLog wal, ReplicationLog replication) {
     this.inventory = inventory;
+    this.wal = wal;
+    this.replication = replication;
+    this.events = new InventoryEventBus(inventory, revision);
+    this.searchIndex = new ItemSearchIndex(inventory);
+    for (Item item : inventory) {
+      nameIndex.put(normalizeName(item.name()), item.id());
+      ids.add(item.id());
+      quantityChanged(null, item);
+      uniqueId.accumulateAndGet(item.id() + 1, Math::max);
+    }
+    searchIndex.refresh(ids);
+  }
+
+  /**
+   * Makes sure that ids handed out from now on are greater than an id used before, for example by
+   * an item that was recovered from the write-ahead log or deleted before a restart.
+   *
+   * @param highestId int, the highest id already used
+   */
+  public void restoreIdCounter(int highestId) {
+    uniqueId.accumulateAndGet(highestId + 1, Math::max);
+  }
+
+  /**
+   * @return int, the highest id handed out so far, including ids of deleted items
+   */
+  public int highestIdUsed() {
+    return uniqueId.get() - 1;
+  }
+
+  /**
+   * Stores an item received from the primary instance, when this instance is a read replica. The
+   * primary already checked it, so the name index follows it: an item still holding its name here
+   * is about to be renamed or removed by a later mutation.
+   *
+   * @param item Item, the latest state of the item on the primary
+   */
+  public void replicate(Item item) {
+    String nameKey = normalizeName(item.name());
+    batchLock.readLock().lock();
+    try {
+      // Mutations are applied by a single thread, so the entry does not need to be locked
+      Item previous = inventory.put(item);
+      if (previous != null && !normalizeName(previous.name()).equals(nameKey)) {
+        nameIndex.remove(normalizeName(previous.name()), item.id());
+      }
+      nameIndex.put(nameKey, item.id());
+      ids.add(item.id());
+      quantityChanged(previous, item);
+      uniqueId.accumulateAndGet(item.id() + 1, Math::max);
+      events.publish(previous == null ? "create" : "update", item.id());
+      searchIndex.refresh(item.id());
+      responseCache.invalidate();
+    } finally {
+      batchLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Removes an item removed on the primary instance, when this instance is a read replica.
+   *
+   * @param id int, the removed item
+   */
+  public void replicateRemoval(int id) {
+    batchLock.readLock().lock();
+    try {
+      Item removed = inventory.remove(id);
+      if (removed == null) {
+        return;
+      }
+      nameIndex.remove(normalizeName(removed.name()), id);
+      ids.remove(id);
+      quantityChanged(removed, null);
+      events.publish("delete", id);
+      searchIndex.refresh(id);
+      responseCache.invalidate();
+    } finally {
+      batchLock.readLock().unlock();
+    }
   }
 
   /**
@@ -62,19 +222,56 @@ public class InventoryController {
     Item newitem =
         ctx.bodyValidator(Item.class)
             .check(obj -> obj.name() != null, "Missing item's name")
+            .check(
+                obj -> obj.name() == null || obj.name().length() <= MAX_NAME_LENGTH,
+                "Item's name too long")
             .check(obj -> obj.num() >= 0, "Incorrect ammount")
             .get();
 
-    String name = newitem.name();
-    for (Item item : inventory.values()) {
-      if (name.equalsIgnoreCase(item.name())) {
-        throw new ConflictResponse("Item with the same name already exists.");
-      }
+    String nameKey = normalizeName(newitem.name());
+    if (nameIndex.containsKey(nameKey)) {
+      throw new ConflictResponse("Item with the same name already exists.");
     }
 
-    newitem = new Item(uniqueId.getAndIncrement(), newitem.name(), newitem.num());
+    batchLock.readLock().lock();
+    try {
+      // The name is reserved atomically so that two concurrent creates cannot both succeed, and
+      // the id is only taken once the name is free, so that a conflict does not use one up
+      int id =
+          nameIndex.compute(
+              nameKey,
+              (key, owner) -> {
+                if (owner != null) {
+                  throw new ConflictResponse("Item with the same name already exists.");
+                }
+                return uniqueId.getAndIncrement();
+              });
+
+      Item created = Item.versioned(id, newitem.name(), newitem.num(), 1);
+      newitem = created;
 
-    inventory.put(newitem.id(), newitem);
+      // Logged while the entry is locked, so that a write racing on the new id is logged after it
+      inventory.computeIfAbsent(
+          id,
+          key -> {
+            try {
+              wal.append(new Mutation.ItemPut(created));
+            } catch (RuntimeException e) {
+              nameIndex.remove(nameKey, id);
+              throw e;
+            }
+            quantityChanged(null, created);
+            return created;
+          });
+      ids.add(newitem.id());
+      events.publish("create", id);
+      replication.itemChanged(id);
+      searchIndex.refresh(id);
+      responseCache.invalidate();
+    } finally {
+      batchLock.readLock().unlock();
+    }
+    wal.awaitDurable();
 
     ctx.status(HttpStatus.CREATED);
     ctx.json(newitem);
@@ -132,10 +329,10 @@ public class InventoryController {
     if (item == null) {
       throw new NotFoundResponse("Item not found.");
     }
-    String etag = computeItemEtag(item);
+    String etag = item.etag();
     String ifNoneMatch = ctx.header(Header.IF_NONE_MATCH);
 
-    if (etagMatches(ifNoneMatch, etag)) {
+    if (ETagUtil.ifNoneMatch(ifNoneMatch, etag)) {
       ctx.header(Header.ETAG, etag);
       ctx.header(Header.CACHE_CONTROL, "public, max-age=0, must-revalidate");
       ctx.status(HttpStatus.NOT_MODIFIED);
@@ -149,15 +346,54 @@ public class InventoryController {
   }
 
   /**
-   * Retrieves multiple items from the inventory, optionally filtered by name.
+   * Retrieves multiple items from the inventory, optionally filtered by name and paginated.
    *
    * @param ctx the Javalin context containing the request and response
+   * @throws BadRequestResponse if the limit or the cursor is invalid
    */
   @OpenApi(
       path = "/inventory/list",
       methods = {HttpMethod.GET},
       summary = "Get multiple items",
-      description = "Retrieves multiple items from the inventory, optionally filtered by name.",
+      description =
+          "Retrieves multiple items from the inventory, optionally filtered by name. When a limit"
+              + " or a cursor is given, items are returned by ascending id one page at a time."
+              + " With stream=true the whole inventory is written by ascending id as it is read."
+              + " With since=<X-Revision of a previous response>, only the items changed since"
+              + " then are returned, deleted ones as tombstones. With minNum, maxNum or sort=num,"
+              + " only the items whose quantity is in the range are returned, by ascending quantity"
+              + " then id with sort=num, paginated with limit and cursor.",
+      queryParams = {
+        @OpenApiParam(
+            name = "minNum",
+            type = Integer.class,
+            description = "Smallest quantity of the items returned, served by quantity"),
+        @OpenApiParam(
+            name = "maxNum",
+            type = Integer.class,
+            description = "Largest quantity of the items returned, served by quantity"),
+        @OpenApiParam(
+            name = "sort",
+            type = String.class,
+            description = "id (default) or num, the order of the items returned"),
+        @OpenApiParam(
+            name = "since",
+            type = String.class,
+            description = "X-Revision of a previous response, returns the changes since then"),
+        @OpenApiParam(
+            name = "stream",
+            type = Boolean.class,
+            description =
+                "Streams the whole inventory with chunked encoding, ignores limit and cursor"),
+        @OpenApiParam(
+            name = "limit",
+            type = Integer.class,
+            description = "Maximum number of items in the page, enables pagination"),
+        @OpenApiParam(
+            name = "cursor",
+            type = String.class,
+            description = "Opaque cursor from the X-Next-Cursor header of the previous page")
+      },
       tags = {"Inventory Management"},
       responses = {
         @OpenApiResponse(
@@ -172,6 +408,29 @@ public class InventoryController {
               @OpenApiParam(
                   name = "Cache-Control",
                   description = "Cache policy directives for this response",
+                  type = String.class),
+              @OpenApiParam(
+                  name = "X-Next-Cursor",
+                  description = "Cursor of the next page, absent on the last page",
+                  type = String.class),
+              @OpenApiParam(
+                  name = "X-Revision",
+                  description = "Revision of the full list, to pass as since on the next sync",
+                  type = String.class)
+            }),
+        @OpenApiResponse(
+            status = "200",
+            description = "Changes since the given revision",
+            content = {@OpenApiContent(from = ItemChange[].class)},
+            headers = {
+              @OpenApiParam(
+                  name = "X-Revision",
+                  description = "Revision to pass as since on the next sync",
+                  type = String.class),
+              @OpenApiParam(
+                  name = "X-Sync",
+                  description =
+                      "delta, or full when the revision is too old and the body holds every item",
                   type = String.class)
             }),
         @OpenApiResponse(
@@ -189,32 +448,390 @@ public class InventoryController {
             })
       })
   public void getMany(Context ctx) {
+    String since = ctx.queryParam("since");
+    if (since != null) {
+      getChanges(ctx, since);
+      return;
+    }
+
     String name = ctx.queryParam("name");
+    String cursor = ctx.queryParam("cursor");
+    Integer limit =
+        ctx.queryParamAsClass("limit", Integer.class)
+            .allowNullable()
+            .check(l -> l == null || (l > 0 && l <= MAX_PAGE_SIZE), "Incorrect page size")
+            .get();
+    boolean stream = ctx.queryParamAsClass("stream", Boolean.class).getOrDefault(false);
 
-    List<Item> items = new ArrayList<>();
+    Integer minNum = ctx.queryParamAsClass("minNum", Integer.class).allowNullable().get();
+    Integer maxNum = ctx.queryParamAsClass("maxNum", Integer.class).allowNullable().get();
+    String sort = ctx.queryParamAsClass("sort", String.class).getOrDefault("id");
+    if (!sort.equals("id") && !sort.equals("num")) {
+      throw new BadRequestResponse("Incorrect sort");
+    }
+    if (minNum != null || maxNum != null || sort.equals("num")) {
+      if (stream || !listKey(name).equals("all")) {
+        throw new BadRequestResponse("Quantity filters cannot be combined with name or stream");
+      }
+      getByQuantity(
+          ctx,
+          minNum == null ? 0 : minNum,
+          maxNum == null ? Integer.MAX_VALUE : maxNum,
+          sort.equals("num"),
+          cursor,
+          limit);
+      return;
+    }
 
-    if (name == null || name.equalsIgnoreCase("all")) {
-      items.addAll(inventory.values());
-    } else {
-      for (Item item : inventory.values()) {
-        if (item.name().equalsIgnoreCase(name)) {
+    if (!stream && (cursor != null || limit != null)) {
+      getPage(ctx, name, cursor, limit == null ? DEFAULT_PAGE_SIZE : limit);
+      return;
+    }
+
+    // The revision is read before the data so that the ETag never claims a newer state than the
+    // items that are returned
+    long currentRevision = revision.get();
+    String key = listKey(name);
+    String etag = computeListEtag(currentRevision, key);
+    String ifNoneMatch = ctx.header(Header.IF_NONE_MATCH);
+    ctx.header("X-Revision", eventId(currentRevision));
+
+    if (ETagUtil.ifNoneMatch(ifNoneMatch, etag)) {
+      ctx.header(Header.ETAG, etag);
+      ctx.header(Header.CACHE_CONTROL, "private, max-age=0, must-revalidate");
+      ctx.status(HttpStatus.NOT_MODIFIED);
+      return;
+    }
+
+    if (stream) {
+      ctx.header(Header.ETAG, etag);
+      ctx.header(Header.CACHE_CONTROL, "private, max-age=0, must-revalidate");
+      ctx.status(HttpStatus.OK);
+      JsonStreamUtil.writeArray(ctx, streamItems(key, name));
+      return;
+    }
+
+    byte[] body = responseCache.get(key, currentRevision);
+    if (body == null) {
+      List<Item> items = new ArrayList<>();
+
+      if ("all".equals(key)) {
+        inventory.forEach(items::add);
+      } else {
+        Integer id = nameIndex.get(key);
+        Item item = id == null ? null : inventory.get(id);
+        if (item != null && item.name().equalsIgnoreCase(name)) {
           items.add(item);
         }
       }
+
+      body = ctx.jsonMapper().toJsonString(items, List.class).getBytes(StandardCharsets.UTF_8);
+      responseCache.put(key, currentRevision, body);
     }
 
-    String etag = computeListEtag(items, name);
+    ctx.header(Header.ETAG, etag);
+    ctx.header(Header.CACHE_CONTROL, "private, max-age=0, must-revalidate");
+    ctx.status(HttpStatus.OK);
+    ctx.contentType(ContentType.APPLICATION_JSON);
+    ctx.result(body);
+  }
+
+  /**
+   * Lazily reads the items of a list request by ascending id, for streamed responses.
+   *
+   * @param key String, the list key as returned by listKey
+   * @param name String, optional name filter
+   * @return Stream<Item>, the matching items
+   */
+  private Stream<Item> streamItems(String key, String name) {
+    if ("all".equals(key)) {
+      return ids.stream().map(inventory::get).filter(Objects::nonNull);
+    }
+
+    Integer id = nameIndex.get(key);
+    Item item = id == null ? null : inventory.get(id);
+    return item != null && item.name().equalsIgnoreCase(name) ? Stream.of(item) : Stream.empty();
+  }
+
+  /**
+   * Writes one page of items ordered by id, starting after the cursor.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @param name String, optional name filter
+   * @param cursor String, cursor returned with the previous page, or null for the first page
+   * @param limit int, maximum number of items in the page
+   */
+  private void getPage(Context ctx, String name, String cursor, int limit) {
+    int after = decodeCursor(cursor);
+
+    long currentRevision = revision.get();
+    String key = listKey(name);
+    String etag =
+        computeListEtag(currentRevision, key + "|" + (cursor == null ? "" : cursor) + "|" + limit);
     String ifNoneMatch = ctx.header(Header.IF_NONE_MATCH);
 
-    if (etagMatches(ifNoneMatch, etag)) {
+    if (ETagUtil.ifNoneMatch(ifNoneMatch, etag)) {
+      ctx.header(Header.ETAG, etag);
+      ctx.header(Header.CACHE_CONTROL, "private, max-age=0, must-revalidate");
+      ctx.status(HttpStatus.NOT_MODIFIED);
+      return;
+    }
+
+    List<Item> items = new ArrayList<>(Math.min(limit, DEFAULT_PAGE_SIZE));
+    String nextCursor = null;
+
+    if ("all".equals(key)) {
+      for (Integer id : ids.tailSet(after, false)) {
+        Item item = inventory.get(id);
+        if (item == null) {
+          continue;
+        }
+        if (items.size() == limit) {
+          nextCursor = encodeCursor(items.get(items.size() - 1).id());
+          break;
+        }
+        items.add(item);
+      }
+    } else {
+      Integer id = nameIndex.get(key);
+      Item item = id == null || id <= after ? null : inventory.get(id);
+      if (item != null && item.name().equalsIgnoreCase(name)) {
+        items.add(item);
+      }
+    }
+
+    if (nextCursor != null) {
+      ctx.header("X-Next-Cursor", nextCursor);
+    }
+    ctx.header(Header.ETAG, etag);
+    ctx.header(Header.CACHE_CONTROL, "private, max-age=0, must-revalidate");
+    ctx.status(HttpStatus.OK);
+    ctx.json(items);
+  }
+
+  /**
+   * Writes the items whose quantity is in a range, from the quantity index. By quantity, a page
+   * costs O(log n + limit) whatever the size of the range. By id, the whole range is read and
+   * sorted, then paginated.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @param minNum int, the smallest quantity returned
+   * @param maxNum int, the largest quantity returned
+   * @param byNum boolean, true to order the items by quantity then id, false by id
+   * @param cursor String, cursor returned with the previous page, or null for the first page
+   * @param limit Integer, maximum number of items in the page, or null for the whole range
+   * @throws BadRequestResponse if the range or the cursor is invalid
+   */
+  private void getByQuantity(
+      Context ctx, int minNum, int maxNum, boolean byNum, String cursor, Integer limit) {
+    if (minNum < 0 || minNum > maxNum) {
+      throw new BadRequestResponse("Incorrect quantity range");
+    }
+    int pageSize = limit == null ? (cursor == null ? Integer.MAX_VALUE : DEFAULT_PAGE_SIZE) : limit;
+
+    long currentRevision = revision.get();
+    String etag =
+        computeListEtag(
+            currentRevision,
+            "num|"
+                + minNum
+                + "|"
+                + maxNum
+                + "|"
+                + (byNum ? "num" : "id")
+                + "|"
+                + (cursor == null ? "" : cursor)
+                + "|"
+                + (limit == null ? "" : limit));
+    ctx.header("X-Revision", eventId(currentRevision));
+
+    if (ETagUtil.ifNoneMatch(ctx.header(Header.IF_NONE_MATCH), etag)) {
       ctx.header(Header.ETAG, etag);
       ctx.header(Header.CACHE_CONTROL, "private, max-age=0, must-revalidate");
       ctx.status(HttpStatus.NOT_MODIFIED);
       return;
     }
 
+    long from = quantityKey(minNum, 0);
+    long to = quantityKey(maxNum, -1);
+    long after = byNum ? decodeQuantityCursor(cursor) : Long.MIN_VALUE;
+    List<Item> items = new ArrayList<>();
+    String nextCursor = null;
+
+    NavigableSet<Long> range =
+        after >= to
+            ? Collections.emptyNavigableSet()
+            : quantities.subSet(Math.max(from, after), after < from, to, true);
+    for (long key : range) {
+      Item item = inventory.get((int) key);
+      // The item was changed since its key was read, and is found under its new key
+      if (item == null || quantityKey(item) != key) {
+        continue;
+      }
+      if (byNum && items.size() == pageSize) {
+        nextCursor = encodeQuantityCursor(quantityKey(items.get(items.size() - 1)));
+        break;
+      }
+      items.add(item);
+    }
+
+    if (!byNum) {
+      items.sort(Comparator.comparingInt(Item::id));
+      int start = 0;
+      if (cursor != null) {
+        int afterId = decodeCursor(cursor);
+        while (start < items.size() && items.get(start).id() <= afterId) {
+          start++;
+        }
+      }
+      int end = (int) Math.min(items.size(), (long) start + pageSize);
+      if (end < items.size()) {
+        nextCursor = encodeCursor(items.get(end - 1).id());
+      }
+      items = items.subList(start, end);
+    }
+
+    if (nextCursor != null) {
+      ctx.header("X-Next-Cursor", nextCursor);
+    }
+    ctx.header(Header.ETAG, etag);
+    ctx.header(Header.CACHE_CONTROL, "private, max-age=0, must-revalidate");
+    ctx.status(HttpStatus.OK);
+    ctx.json(items);
+  }
+
+  /**
+   * Serves the changes since a revision returned by a previous list or sync: the current state of
+   * every item changed since then, and a tombstone for every deleted one. When the change log no
+   * longer goes back to that revision, every item is returned instead and X-Sync is "full".
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @param since the X-Revision header of the previous response
+   */
+  private void getChanges(Context ctx, String since) {
+    // Changes made after this revision are sent again on the next sync, which is harmless since
+    // every change holds the current state of the item
+    long currentRevision = revision.get();
+    long after = parseEventId(since);
+    Set<Integer> changed = after < 0 ? null : events.changedIds(after, currentRevision);
+
+    List<ItemChange> changes = new ArrayList<>();
+    if (changed == null) {
+      for (Integer id : ids) {
+        Item item = inventory.get(id);
+        if (item != null) {
+          changes.add(new ItemChange(id, item, false));
+        }
+      }
+    } else {
+      for (Integer id : changed) {
+        Item item = inventory.get(id);
+        changes.add(new ItemChange(id, item, item == null));
+      }
+    }
+
+    ctx.header("X-Revision", eventId(currentRevision));
+    ctx.header("X-Sync", changed == null ? "full" : "delta");
+    ctx.header(Header.CACHE_CONTROL, "private, no-store");
+    ctx.status(HttpStatus.OK);
+    ctx.json(changes);
+  }
+
+  /**
+   * Returns the totals of the inventory, read from counters kept up to date by every write.
+   *
+   * @param ctx the Javalin context containing the request and response
+   */
+  @OpenApi(
+      path = "/inventory/stats",
+      methods = {HttpMethod.GET},
+      summary = "Get inventory stats",
+      description =
+          "Returns the number of items, the total quantity, the number of items out of stock and"
+              + " the number of items per quantity range, in constant time.",
+      tags = {"Inventory Management"},
+      responses = {
+        @OpenApiResponse(
+            status = "200",
+            description = "Stats retrieved successfully",
+            content = {@OpenApiContent(from = InventoryStats.class)},
+            headers = {
+              @OpenApiParam(
+                  name = "ETag",
+                  description = "Weak entity tag to support cache revalidation",
+                  type = String.class)
+            }),
+        @OpenApiResponse(status = "304", description = "Stats not modified")
+      })
+  public void stats(Context ctx) {
+    long currentRevision = revision.get();
+    String etag = computeListEtag(currentRevision, "stats");
+
     ctx.header(Header.ETAG, etag);
     ctx.header(Header.CACHE_CONTROL, "private, max-age=0, must-revalidate");
+    if (ETagUtil.ifNoneMatch(ctx.header(Header.IF_NONE_MATCH), etag)) {
+      ctx.status(HttpStatus.NOT_MODIFIED);
+      return;
+    }
+    ctx.status(HttpStatus.OK);
+    ctx.json(counters.stats());
+  }
+
+  /**
+   * Searches items by partial name, ignoring case, and returns the best matches first.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @throws BadRequestResponse if the query is missing or the limit is invalid
+   */
+  @OpenApi(
+      path = "/inventory/search",
+      methods = {HttpMethod.GET},
+      summary = "Search items by name",
+      description =
+          "Returns the items whose name contains the query, ignoring case: the exact name first,"
+              + " then names starting with it, names with a word starting with it, and other"
+              + " names containing it, shorter names first. Queries shorter than three characters"
+              + " only match the start of a word.",
+      queryParams = {
+        @OpenApiParam(
+            name = "q",
+            type = String.class,
+            description = "Searched text",
+            required = true),
+        @OpenApiParam(
+            name = "limit",
+            type = Integer.class,
+            description = "Maximum number of items returned, 20 by default")
+      },
+      tags = {"Inventory Management"},
+      responses = {
+        @OpenApiResponse(
+            status = "200",
+            description = "Matching items, best first",
+            content = {@OpenApiContent(from = Item[].class)}),
+        @OpenApiResponse(status = "400", description = "Missing query or incorrect limit")
+      })
+  public void search(Context ctx) {
+    String query =
+        ctx.queryParamAsClass("q", String.class)
+            .check(q -> !q.isBlank(), "Missing query")
+            .get()
+            .strip();
+    int limit =
+        ctx.queryParamAsClass("limit", Integer.class)
+            .check(l -> l > 0 && l <= MAX_SEARCH_LIMIT, "Incorrect limit")
+            .getOrDefault(DEFAULT_SEARCH_LIMIT);
+
+    List<Item> items = new ArrayList<>();
+    for (int id : searchIndex.search(query, limit)) {
+      // Removed since the search
+      Item item = inventory.get(id);
+      if (item != null) {
+        items.add(item);
+      }
+    }
+
+    ctx.header(Header.CACHE_CONTROL, "private, no-store");
     ctx.status(HttpStatus.OK);
     ctx.json(items);
   }
@@ -225,15 +842,24 @@ public class InventoryController {
    * @param ctx the Javalin context containing the request and response
    * @throws NotFoundResponse if the item with the specified ID does not exist
    * @throws ConflictResponse if an item with the same name already exists
+   * @throws PreconditionFailedResponse if the item does not match the If-Match header
    */
   @OpenApi(
       path = "/inventory/update/{id}",
       methods = {HttpMethod.PUT},
       summary = "Update an item",
-      description = "Updates an existing item in the inventory.",
+      description =
+          "Updates an existing item in the inventory. With If-Match, the item is only updated if"
+              + " its ETag still matches, checked and written in one atomic step.",
       pathParams = {
         @OpenApiParam(name = "id", type = Integer.class, description = "User ID", required = true)
       },
+      headers = {
+        @OpenApiParam(
+            name = "If-Match",
+            description = "ETag of the item as last read, the write fails if it changed since",
+            type = String.class)
+      },
       requestBody =
           @OpenApiRequestBody(
               content = {
@@ -246,35 +872,540 @@ public class InventoryController {
         @OpenApiResponse(
             status = "200",
             description = "Item updated successfully",
-            content = {@OpenApiContent(from = Item.class)}),
+            content = {@OpenApiContent(from = Item.class)},
+            headers = {
+              @OpenApiParam(
+                  name = "ETag",
+                  description = "ETag of the updated item, for the next If-Match",
+                  type = String.class)
+            }),
         @OpenApiResponse(status = "404", description = "Item not found"),
-        @OpenApiResponse(status = "409", description = "Item with the same name already exists")
+        @OpenApiResponse(status = "409", description = "Item with the same name already exists"),
+        @OpenApiResponse(status = "412", description = "Item modified since the If-Match ETag")
       })
   public void update(Context ctx) {
     Integer id = ctx.pathParamAsClass("id", Integer.class).get();
 
-    if (!inventory.containsKey(id)) {
+    if (!inventory.contains(id)) {
       throw new NotFoundResponse("Item not found.");
     }
 
     Item updateItem =
         ctx.bodyValidator(Item.class)
             .check(obj -> obj.name() != null, "Missing item's name")
+            .check(
+                obj -> obj.name() == null || obj.name().length() <= MAX_NAME_LENGTH,
+                "Item's name too long")
             .check(obj -> obj.num() >= 0, "Incorrect ammount")
             .get();
 
-    for (Item item : inventory.values()) {
-      if (updateItem.name().equalsIgnoreCase(item.name()) && item.id() != id) {
-        throw new ConflictResponse("Item with the same name already exists.");
+    Item requested = updateItem;
+    String nameKey = normalizeName(requested.name());
+    String ifMatch = ctx.header(Header.IF_MATCH);
+
+    // Name index changes for an item happen inside its map entry update, so concurrent renames
+    // of the same item are applied one after the other
+    batchLock.readLock().lock();
+    try {
+      updateItem =
+          inventory.computeIfPresent(
+              id,
+              previous -> {
+                // Checked on the locked entry, so no other write can happen in between
+                if (ifMatch != null && !ETagUtil.ifMatch(ifMatch, previous.etag())) {
+                  throw new PreconditionFailedResponse("Item was modified.");
+                }
+                if (requested.num() < reservations.reserved(id)) {
+                  throw new ConflictResponse("Quantity below the reserved units.");
+                }
+                // The new name is reserved before logging and released again if logging fails, the
+                // previous one is only dropped once the write is logged
+                Integer owner = nameIndex.putIfAbsent(nameKey, id);
+                if (owner != null && owner.intValue() != id) {
+                  throw new ConflictResponse("Item with the same name already exists.");
+                }
+
+                Item next =
+                    Item.versioned(id, requested.name(), requested.num(), previous.version() + 1);
+                try {
+                  wal.append(new Mutation.ItemPut(next));
+                } catch (RuntimeException e) {
+                  if (owner == null) {
+                    nameIndex.remove(nameKey, id);
+                  }
+                  throw e;
+                }
+
+                String previousKey = normalizeName(previous.name());
+                if (!previousKey.equals(nameKey)) {
+                  nameIndex.remove(previousKey, id);
+                }
+                quantityChanged(previous, next);
+                return next;
+              });
+
+      if (updateItem == null) {
+        throw new NotFoundResponse("Item not found.");
+      }
+      events.publish("update", id);
+      replication.itemChanged(id);
+      searchIndex.refresh(id);
+      responseCache.invalidate();
+    } finally {
+      batchLock.readLock().unlock();
+    }
+    wal.awaitDurable();
+
+    ctx.header(Header.ETAG, updateItem.etag());
+    ctx.status(HttpStatus.OK);
+    ctx.json(updateItem);
+  }
+
+  /**
+   * Atomically adds a signed delta to the quantity of an item.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @throws NotFoundResponse if the item with the specified ID does not exist
+   * @throws ConflictResponse if the resulting quantity would be negative
+   */
+  @OpenApi(
+      path = "/inventory/{id}/adjust",
+      methods = {HttpMethod.POST},
+      summary = "Adjust the quantity of an item",
+      description =
+          "Adds a signed delta to the quantity of an item in a single atomic step and returns the"
+              + " updated item. Concurrent adjustments of the same item are never lost.",
+      pathParams = {
+        @OpenApiParam(name = "id", type = Integer.class, description = "Item ID", required = true)
+      },
+      requestBody =
+          @OpenApiRequestBody(
+              content = {@OpenApiContent(type = "application/json", example = "{\"delta\":-2}")}),
+      tags = {"Inventory Management"},
+      responses = {
+        @OpenApiResponse(
+            status = "200",
+            description = "Quantity adjusted successfully",
+            content = {@OpenApiContent(from = Item.class)}),
+        @OpenApiResponse(status = "404", description = "Item not found"),
+        @OpenApiResponse(status = "409", description = "Not enough units in stock")
+      })
+  public void adjust(Context ctx) {
+    Integer id = ctx.pathParamAsClass("id", Integer.class).get();
+
+    StockAdjustment adjustment =
+        ctx.bodyValidator(StockAdjustment.class)
+            .check(obj -> obj.delta() != null, "Missing delta")
+            .get();
+    int delta = adjustment.delta();
+
+    // The new quantity is computed on the map entry itself, so concurrent adjustments of the same
+    // item are applied one after the other without lost updates
+    Item adjusted;
+    batchLock.readLock().lock();
+    try {
+      adjusted =
+          inventory.computeIfPresent(
+              id,
+              previous -> {
+                long num = (long) previous.num() + delta;
+                // Units held by reservations cannot be taken
+                if (num < reservations.reserved(id)) {
+                  throw new ConflictResponse("Not enough units in stock.");
+                }
+                if (num > Integer.MAX_VALUE) {
+                  throw new BadRequestResponse("Incorrect ammount");
+                }
+                Item next = Item.versioned(id, previous.name(), (int) num, previous.version() + 1);
+                wal.append(new Mutation.ItemPut(next));
+                quantityChanged(previous, next);
+                return next;
+              });
+
+      if (adjusted == null) {
+        throw new NotFoundResponse("Item not found.");
+      }
+      events.publish("adjust", id);
+      replication.itemChanged(id);
+      responseCache.invalidate();
+    } finally {
+      batchLock.readLock().unlock();
+    }
+    wal.awaitDurable();
+
+    ctx.status(HttpStatus.OK);
+    ctx.json(adjusted);
+  }
+
+  /**
+   * Holds units of an item for a while, so that no other buyer can take them. The hold is then
+   * committed, which removes the units from the stock, or released; otherwise it expires.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @throws NotFoundResponse if the item with the specified ID does not exist
+   * @throws ConflictResponse if fewer units are available
+   */
+  @OpenApi(
+      path = "/inventory/{id}/reserve",
+      methods = {HttpMethod.POST},
+      summary = "Reserve units of an item",
+      description =
+          "Holds units of an item: they are no longer available to other reservations and"
+              + " adjustments until the reservation is committed, released or expires after"
+              + " ttlSeconds (300 by default, at most 3600). Reservations are kept in memory only.",
+      pathParams = {
+        @OpenApiParam(name = "id", type = Integer.class, description = "Item ID", required = true)
+      },
+      requestBody =
+          @OpenApiRequestBody(
+              content = {
+                @OpenApiContent(
+                    type = "application/json",
+                    example = "{\"quantity\":2,\"ttlSeconds\":300}")
+              }),
+      tags = {"Inventory Management"},
+      responses = {
+        @OpenApiResponse(
+            status = "201",
+            description = "Units reserved",
+            content = {@OpenApiContent(from = Reservation.class)}),
+        @OpenApiResponse(status = "404", description = "Item not found"),
+        @OpenApiResponse(status = "409", description = "Not enough units available")
+      })
+  public void reserve(Context ctx) {
+    Integer id = ctx.pathParamAsClass("id", Integer.class).get();
+
+    ReservationRequest request =
+        ctx.bodyValidator(ReservationRequest.class)
+            .check(obj -> obj.quantity() != null && obj.quantity() > 0, "Incorrect ammount")
+            .check(
+                obj ->
+                    obj.ttlSeconds() == null
+                        || (obj.ttlSeconds() > 0 && obj.ttlSeconds() <= MAX_RESERVATION_SECONDS),
+                "Incorrect ttlSeconds")
+            .get();
+    int quantity = request.quantity();
+    long ttl =
+        1000L * (request.ttlSeconds() == null ? DEFAULT_RESERVATION_SECONDS : request.ttlSeconds());
+
+    // The available units are checked and held while the item is locked, so concurrent
+    // reservations of the same item are applied one after the other
+    Reservations.Hold[] hold = new Reservations.Hold[1];
+    int[] available = new int[1];
+    batchLock.readLock().lock();
+    try {
+      Item item =
+          inventory.computeIfPresent(
+              id,
+              current -> {
+                int free = current.num() - reservations.reserved(id);
+                if (free < quantity) {
+                  throw new ConflictResponse("Not enough units available.");
+                }
+                hold[0] = reservations.open(id, quantity, ttl);
+                available[0] = free - quantity;
+                return current;
+              });
+      if (item == null) {
+        throw new NotFoundResponse("Item not found.");
       }
+    } finally {
+      batchLock.readLock().unlock();
+    }
+
+    ctx.status(HttpStatus.CREATED);
+    ctx.json(new Reservation(hold[0].id(), id, quantity, hold[0].expiresAt(), available[0]));
+  }
+
+  /**
+   * Releases a reservation, making its units available again.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @throws NotFoundResponse if the reservation is not open on this item
+   */
+  @OpenApi(
+      path = "/inventory/{id}/release",
+      methods = {HttpMethod.POST},
+      summary = "Release a reservation",
+      description = "Releases a reservation, making its units available again.",
+      pathParams = {
+        @OpenApiParam(name = "id", type = Integer.class, description = "Item ID", required = true)
+      },
+      requestBody =
+          @OpenApiRequestBody(
+              content = {
+                @OpenApiContent(type = "application/json", example = "{\"reservation\":1}")
+              }),
+      tags = {"Inventory Management"},
+      responses = {
+        @OpenApiResponse(status = "200", description = "Reservation released"),
+        @OpenApiResponse(status = "404", description = "Reservation not found or expired")
+      })
+  public void release(Context ctx) {
+    Reservations.Hold hold = openHold(ctx);
+    if (!reservations.close(hold)) {
+      throw new NotFoundResponse("Reservation not found.");
     }
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Commits a reservation: its units are removed from the stock of the item.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @throws NotFoundResponse if the item does not exist or the reservation is not open on it
+   */
+  @OpenApi(
+      path = "/inventory/{id}/commit",
+      methods = {HttpMethod.POST},
+      summary = "Commit a reservation",
+      description =
+          "Removes the units of a reservation from the stock of the item, in one atomic step, and"
+              + " returns the updated item.",
+      pathParams = {
+        @OpenApiParam(name = "id", type = Integer.class, description = "Item ID", required = true)
+      },
+      requestBody =
+          @OpenApiRequestBody(
+              content = {
+                @OpenApiContent(type = "application/json", example = "{\"reservation\":1}")
+              }),
+      tags = {"Inventory Management"},
+      responses = {
+        @OpenApiResponse(
+            status = "200",
+            description = "Reservation committed",
+            content = {@OpenApiContent(from = Item.class)}),
+        @OpenApiResponse(status = "404", description = "Item or reservation not found")
+      })
+  public void commit(Context ctx) {
+    Reservations.Hold hold = openHold(ctx);
+    int id = hold.itemId();
 
-    updateItem = new Item(id, updateItem.name(), updateItem.num());
+    // Closing the hold and lowering the quantity happen in the same update, so the units
+    // are never counted as available in between
+    Item committed;
+    batchLock.readLock().lock();
+    try {
+      committed =
+          inventory.computeIfPresent(
+              id,
+              previous -> {
+                if (!reservations.close(hold)) {
+                  throw new NotFoundResponse("Reservation not found.");
+                }
+                int num = previous.num() - hold.quantity();
+                Item next = Item.versioned(id, previous.name(), num, previous.version() + 1);
+                wal.append(new Mutation.ItemPut(next));
+                quantityChanged(previous, next);
+                return next;
+              });
 
-    inventory.put(id, updateItem);
+      if (committed == null) {
+        reservations.close(hold);
+        throw new NotFoundResponse("Item not found.");
+      }
+      events.publish("adjust", id);
+      replication.itemChanged(id);
+      responseCache.invalidate();
+    } finally {
+      batchLock.readLock().unlock();
+    }
+    wal.awaitDurable();
 
     ctx.status(HttpStatus.OK);
-    ctx.json(updateItem);
+    ctx.json(committed);
+  }
+
+  /**
+   * Finds the open reservation named by the body of a release or commit request.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @return Reservations.Hold, the reservation
+   * @throws NotFoundResponse if the reservation is not open on the item of the path
+   */
+  private Reservations.Hold openHold(Context ctx) {
+    Integer id = ctx.pathParamAsClass("id", Integer.class).get();
+    ReservationAction action =
+        ctx.bodyValidator(ReservationAction.class)
+            .check(obj -> obj.reservation() != null, "Missing reservation")
+            .get();
+
+    Reservations.Hold hold = reservations.get(action.reservation());
+    if (hold == null || hold.itemId() != id) {
+      throw new NotFoundResponse("Reservation not found.");
+    }
+    return hold;
+  }
+
+  /**
+   * Applies a list of create, update, delete and adjust operations as a single unit. The whole
+   * batch is validated first and only applied if every operation succeeds, after which the store
+   * revision is bumped once.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @throws BadRequestResponse if an operation is malformed
+   * @throws NotFoundResponse if an operation targets an item that does not exist
+   * @throws ConflictResponse if an operation would duplicate a name or make a quantity negative
+   */
+  @OpenApi(
+      path = "/inventory/batch",
+      methods = {HttpMethod.POST},
+      summary = "Apply a batch of operations",
+      description =
+          "Applies create, update, delete and adjust operations in order, all or nothing. The"
+              + " response holds, for each operation, the item after it was applied (null for a"
+              + " delete). Errors name the index of the first failing operation.",
+      requestBody =
+          @OpenApiRequestBody(
+              content = {
+                @OpenApiContent(
+                    type = "application/json",
+                    example =
+                        "[{\"op\":\"create\",\"name\":\"chair\",\"num\":10},"
+                            + "{\"op\":\"update\",\"id\":2,\"name\":\"table\",\"num\":4},"
+                            + "{\"op\":\"adjust\",\"id\":3,\"delta\":-1},"
+                            + "{\"op\":\"delete\",\"id\":4}]")
+              }),
+      tags = {"Inventory Management"},
+      responses = {
+        @OpenApiResponse(
+            status = "200",
+            description = "Batch applied successfully",
+            content = {@OpenApiContent(from = Item[].class)}),
+        @OpenApiResponse(status = "400", description = "Malformed operation"),
+        @OpenApiResponse(status = "404", description = "Item not found"),
+        @OpenApiResponse(
+            status = "409",
+            description = "Item with the same name already exists or not enough units in stock")
+      })
+  public void batch(Context ctx) {
+    BatchOperation[] operations =
+        ctx.bodyValidator(BatchOperation[].class)
+            .check(obj -> obj.length > 0, "Empty batch")
+            .check(obj -> obj.length <= MAX_BATCH_SIZE, "Too many operations")
+            .get();
+
+    List<Item> results = new ArrayList<>(operations.length);
+
+    batchLock.writeLock().lock();
+    try {
+      // Resulting state of every touched item (null once deleted) and of every touched name
+      // (null once released), validated against the store without modifying it
+      Map<Integer, Item> stagedItems = new LinkedHashMap<>();
+      Map<String, Integer> stagedNames = new HashMap<>();
+      int nextId = uniqueId.get();
+
+      for (int i = 0; i < operations.length; i++) {
+        BatchOperation operation = operations[i];
+        String prefix = "Operation " + i + ": ";
+        String op = operation.op() == null ? "" : operation.op().toLowerCase(Locale.ROOT);
+
+        if (op.equals("create")) {
+          checkNameAndNum(operation, prefix);
+          String nameKey = normalizeName(operation.name());
+          if (stagedOwner(stagedNames, nameKey) != null) {
+            throw new ConflictResponse(prefix + "Item with the same name already exists.");
+          }
+
+          Item created = Item.versioned(nextId++, operation.name(), operation.num(), 1);
+          stagedItems.put(created.id(), created);
+          stagedNames.put(nameKey, created.id());
+          results.add(created);
+          continue;
+        }
+
+        if (!op.equals("update") && !op.equals("delete") && !op.equals("adjust")) {
+          throw new BadRequestResponse(prefix + "Unknown operation");
+        }
+        if (operation.id() == null) {
+          throw new BadRequestResponse(prefix + "Missing item's id");
+        }
+        int id = operation.id();
+        Item current = stagedItems.containsKey(id) ? stagedItems.get(id) : inventory.get(id);
+        if (current == null) {
+          throw new NotFoundResponse(prefix + "Item not found.");
+        }
+        String currentKey = normalizeName(current.name());
+
+        Item next;
+        if (op.equals("update")) {
+          checkNameAndNum(operation, prefix);
+          String nameKey = normalizeName(operation.name());
+          Integer owner = stagedOwner(stagedNames, nameKey);
+          if (owner != null && owner != id) {
+            throw new ConflictResponse(prefix + "Item with the same name already exists.");
+          }
+          if (operation.num() < reservations.reserved(id)) {
+            throw new ConflictResponse(prefix + "Quantity below the reserved units.");
+          }
+          if (!currentKey.equals(nameKey)) {
+            stagedNames.put(currentKey, null);
+          }
+          stagedNames.put(nameKey, id);
+          next = Item.versioned(id, operation.name(), operation.num(), current.version() + 1);
+        } else if (op.equals("adjust")) {
+          if (operation.delta() == null) {
+            throw new BadRequestResponse(prefix + "Missing delta");
+          }
+          long num = (long) current.num() + operation.delta();
+          if (num < reservations.reserved(id)) {
+            throw new ConflictResponse(prefix + "Not enough units in stock.");
+          }
+          if (num > Integer.MAX_VALUE) {
+            throw new BadRequestResponse(prefix + "Incorrect ammount");
+          }
+          next = Item.versioned(id, current.name(), (int) num, current.version() + 1);
+        } else {
+          stagedNames.put(currentKey, null);
+          next = null;
+        }
+
+        stagedItems.put(id, next);
+        results.add(next);
+      }
+
+      // Logged as one record before anything is applied, so that a failing log leaves the batch
+      // unapplied and a crash never replays part of it
+      List<Mutation> changes = new ArrayList<>(stagedItems.size());
+      for (Map.Entry<Integer, Item> staged : stagedItems.entrySet()) {
+        changes.add(
+            staged.getValue() == null
+                ? new Mutation.ItemRemove(staged.getKey())
+                : new Mutation.ItemPut(staged.getValue()));
+      }
+      wal.append(new Mutation.Batch(changes));
+
+      // Every operation is valid and no other write can run, so applying cannot fail
+      for (Map.Entry<String, Integer> name : stagedNames.entrySet()) {
+        if (name.getValue() == null) {
+          nameIndex.remove(name.getKey());
+        } else {
+          nameIndex.put(name.getKey(), name.getValue());
+        }
+      }
+      for (Map.Entry<Integer, Item> staged : stagedItems.entrySet()) {
+        if (staged.getValue() == null) {
+          quantityChanged(inventory.remove(staged.getKey()), null);
+          reservations.itemRemoved(staged.getKey());
+          ids.remove(staged.getKey());
+        } else {
+          quantityChanged(inventory.put(staged.getValue()), staged.getValue());
+          ids.add(staged.getKey());
+        }
+      }
+      uniqueId.set(nextId);
+      events.publish("batch", stagedItems.keySet());
+      replication.itemsChanged(stagedItems.keySet());
+      searchIndex.refresh(stagedItems.keySet());
+      responseCache.invalidate();
+    } finally {
+      batchLock.writeLock().unlock();
+    }
+    wal.awaitDurable();
+
+    ctx.status(HttpStatus.OK);
+    ctx.json(results);
   }
 
   /**
@@ -282,105 +1413,326 @@ public class InventoryController {
    *
    * @param ctx the Javalin context containing the request and response
    * @throws NotFoundResponse if the item with the specified ID does not exist
+   * @throws PreconditionFailedResponse if the item does not match the If-Match header
    */
   @OpenApi(
       path = "/inventory/remove/{id}",
       methods = {HttpMethod.DELETE},
       summary = "Delete an item",
-      description = "Deletes an item from the inventory by its ID.",
+      description =
+          "Deletes an item from the inventory by its ID. With If-Match, the item is only deleted if"
+              + " its ETag still matches, checked and removed in one atomic step.",
       pathParams = {
         @OpenApiParam(name = "id", type = Integer.class, description = "User ID", required = true)
       },
+      headers = {
+        @OpenApiParam(
+            name = "If-Match",
+            description = "ETag of the item as last read, the write fails if it changed since",
+            type = String.class)
+      },
       tags = {"Inventory Management"},
       responses = {
         @OpenApiResponse(status = "200", description = "Item deleted successfully"),
-        @OpenApiResponse(status = "404", description = "Item not found")
+        @OpenApiResponse(status = "404", description = "Item not found"),
+        @OpenApiResponse(status = "412", description = "Item modified since the If-Match ETag")
       })
   public void delete(Context ctx) {
     Integer id = ctx.pathParamAsClass("id", Integer.class).get();
+    String ifMatch = ctx.header(Header.IF_MATCH);
 
-    if (!inventory.containsKey(id)) {
-      throw new NotFoundResponse("Item not found.");
-    }
+    batchLock.readLock().lock();
+    try {
+      // Logged while the entry is locked, like every other write, before anything is changed
+      Item removed =
+          inventory.remove(
+              id,
+              current -> {
+                if (ifMatch != null && !ETagUtil.ifMatch(ifMatch, current.etag())) {
+                  throw new PreconditionFailedResponse("Item was modified.");
+                }
+                wal.append(new Mutation.ItemRemove(id));
+              });
+      if (removed == null) {
+        throw new NotFoundResponse("Item not found.");
+      }
 
-    inventory.remove(id);
+      nameIndex.remove(normalizeName(removed.name()), id);
+      ids.remove(id);
+      quantityChanged(removed, null);
+      reservations.itemRemoved(id);
+      events.publish("delete", id);
+      replication.itemChanged(id);
+      searchIndex.refresh(id);
+      responseCache.invalidate();
+    } finally {
+      batchLock.readLock().unlock();
+    }
+    wal.awaitDurable();
 
     ctx.status(HttpStatus.OK);
   }
 
   /**
-   * Computes the etag for a single item
+   * Streams inventory changes as Server-Sent Events. Each event is named after the change
+   * ("create", "update", "adjust", "delete" or "batch"), carries the store revision as its id and
+   * an array of ItemChange as its data. A client reconnecting with Last-Event-ID receives the
+   * changes it missed; if they are no longer kept, or the id belongs to another server run, a
+   * "reset" event tells it to reload the list first.
    *
-   * @param item Item, the item to compute the etag for
-   * @return String, the computed etag
+   * <p>Every client is served by its own virtual thread, so a slow client only delays itself.
+   *
+   * @param client the SSE client
+   */
+  @OpenApi(
+      path = "/inventory/changes",
+      methods = {HttpMethod.GET},
+      summary = "Stream inventory changes",
+      description =
+          "Server-Sent Events stream of item changes, resumable with the Last-Event-ID header.",
+      headers = {
+        @OpenApiParam(
+            name = "Last-Event-ID",
+            description = "Id of the last event received, to resume after it",
+            type = String.class)
+      },
+      tags = {"Inventory Management"},
+      responses = {
+        @OpenApiResponse(
+            status = "200",
+            description = "Event stream",
+            content = {@OpenApiContent(type = "text/event-stream")})
+      })
+  public void changes(SseClient client) {
+    // Without Last-Event-ID the client only wants what happens from now on
+    String lastEventId = client.ctx().header("Last-Event-ID");
+    long after = lastEventId == null ? revision.get() : parseEventId(lastEventId);
+
+    client.keepAlive();
+    Thread.ofVirtual().name("inventory-changes").start(() -> streamChanges(client, after));
+  }
+
+  /**
+   * Sends changes to an SSE client until it disconnects.
+   *
+   * @param client the SSE client
+   * @param after the last revision the client has seen, or -1 if it must reload
    */
-  private String computeItemEtag(Item item) {
-    String payload = item.id() + "|" + item.name() + "|" + item.num();
+  private void streamChanges(SseClient client, long after) {
+    JsonMapper mapper = client.ctx().jsonMapper();
+    long position = after;
     try {
-      MessageDigest digest = MessageDigest.getInstance("SHA-256");
-      byte[] hash = digest.digest(payload.getBytes(StandardCharsets.UTF_8));
-      String b64 = Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
-      return "W/\"" + b64 + "\"";
-    } catch (NoSuchAlgorithmException e) {
-      String fallback = Integer.toHexString(payload.hashCode());
-      return "W/\"" + fallback + "\"";
+      while (!client.terminated()) {
+        InventoryEventBus.Change change = events.next(position, KEEP_ALIVE_MILLIS);
+        if (change == null) {
+          // Also detects clients that went away without closing the connection
+          client.sendComment("keep-alive");
+        } else if (change == InventoryEventBus.RESET) {
+          position = revision.get();
+          client.sendEvent("reset", "{}", eventId(position));
+        } else {
+          position = change.revision();
+          client.sendEvent(change.type(), change.json(mapper), eventId(change.revision()));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      client.close();
     }
   }
 
   /**
-   * Checks if the provided ETag matches any of the ETags in the If-None-Match header.
+   * @param revision a store revision
+   * @return the token sent as SSE event id and as X-Revision, tied to this server run
+   */
+  private String eventId(long revision) {
+    return revisionEpoch + "." + revision;
+  }
+
+  /**
+   * Parses a token produced by eventId, from a Last-Event-ID header or a since parameter.
    *
-   * @param ifNoneMatch the value of the If-None-Match header
-   * @param etag the ETag to compare against
-   * @return true if there is a match, false otherwise
+   * @param lastEventId the token
+   * @return the revision to resume after, or -1 if the client must reload
    */
-  private boolean etagMatches(String ifNoneMatch, String etag) {
-    if (ifNoneMatch == null || ifNoneMatch.isBlank()) {
-      return false;
+  private long parseEventId(String lastEventId) {
+    String prefix = revisionEpoch + ".";
+    if (!lastEventId.startsWith(prefix)) {
+      return -1;
     }
-    String candidate = ifNoneMatch.trim();
-    if ("*".equals(candidate)) {
-      return true;
+    try {
+      return Long.parseLong(lastEventId.substring(prefix.length()));
+    } catch (NumberFormatException e) {
+      return -1;
     }
-    // Support a simple comma-separated list of tags
-    String[] parts = candidate.split(",");
-    for (String part : parts) {
-      if (part.trim().equals(etag)) {
-        return true;
-      }
+  }
+
+  /**
+   * Validates the name and quantity of a create or update batch operation.
+   *
+   * @param operation BatchOperation, the operation to validate
+   * @param prefix String, the operation index prepended to error messages
+   * @throws BadRequestResponse if the name is missing or the quantity is missing or negative
+   */
+  private static void checkNameAndNum(BatchOperation operation, String prefix) {
+    if (operation.name() == null) {
+      throw new BadRequestResponse(prefix + "Missing item's name");
+    }
+    if (operation.name().length() > MAX_NAME_LENGTH) {
+      throw new BadRequestResponse(prefix + "Item's name too long");
+    }
+    if (operation.num() == null || operation.num() < 0) {
+      throw new BadRequestResponse(prefix + "Incorrect ammount");
     }
-    return false;
   }
 
   /**
-   * Computes the etag for multiples items item
+   * Returns the id owning a name key once the staged changes of a batch are taken into account.
    *
-   * @param items List<Items>, list of all items in the db
-   * @param filterName String, name filter used
-   * @return String, the computed etag
+   * @param stagedNames Map<String, Integer>, names touched by the batch so far
+   * @param nameKey String, the normalized name
+   * @return Integer, the owning item id or null if the name is free
+   */
+  private Integer stagedOwner(Map<String, Integer> stagedNames, String nameKey) {
+    return stagedNames.containsKey(nameKey) ? stagedNames.get(nameKey) : nameIndex.get(nameKey);
+  }
+
+  /**
+   * Moves an item in the quantity index and counts it in the stats. Called inside the map entry
+   * update of the item, or with the write lock held.
+   *
+   * @param previous Item, the item before the write, or null if it was created
+   * @param next Item, the item after the write, or null if it was removed
+   */
+  private void quantityChanged(Item previous, Item next) {
+    // The new key is added first, so that the item can always be found under one of them
+    if (next != null) {
+      quantities.add(quantityKey(next));
+    }
+    if (previous != null && (next == null || previous.num() != next.num())) {
+      quantities.remove(quantityKey(previous));
+    }
+    counters.record(previous, next);
+  }
+
+  /**
+   * @param item Item, a stored item
+   * @return long, its key in the quantity index
    */
-  private String computeListEtag(List<Item> items, String filterName) {
-    List<Item> ordered = new ArrayList<>(items);
-    ordered.sort((a, b) -> Integer.compare(a.id(), b.id()));
+  private static long quantityKey(Item item) {
+    return quantityKey(item.num(), item.id());
+  }
 
-    String key =
-        (filterName == null || filterName.equalsIgnoreCase("all"))
-            ? "all"
-            : filterName.toLowerCase();
+  /**
+   * @param num int, a quantity, not negative
+   * @param id int, an item id, -1 for the last key of the quantity
+   * @return long, the quantity followed by the id, ordered by quantity then id
+   */
+  private static long quantityKey(int num, int id) {
+    return ((long) num << 32) | (id & 0xFFFFFFFFL);
+  }
 
-    StringBuilder sb = new StringBuilder(key);
-    for (Item it : ordered) {
-      sb.append('|').append(it.id()).append(':').append(it.name()).append(':').append(it.num());
+  /**
+   * Encodes the quantity key of the last item of a page as an opaque cursor.
+   *
+   * @param key long, the quantity key of the last item returned
+   * @return String, the cursor
+   */
+  private static String encodeQuantityCursor(long key) {
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(("n" + key).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Decodes a cursor produced by encodeQuantityCursor.
+   *
+   * @param cursor String, the cursor, or null for the first page
+   * @return long, the quantity key after which the page starts
+   * @throws BadRequestResponse if the cursor is malformed
+   */
+  private static long decodeQuantityCursor(String cursor) {
+    if (cursor == null) {
+      return Long.MIN_VALUE;
     }
+    try {
+      String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      if (!decoded.startsWith("n")) {
+        throw new BadRequestResponse("Invalid cursor.");
+      }
+      return Long.parseLong(decoded.substring(1));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("Invalid cursor.");
+    }
+  }
 
-    byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+  /**
+   * Normalizes an item name for the case-insensitive name index.
+   *
+   * @param name String, the item name
+   * @return String, the normalized name used as index key
+   */
+  private static String normalizeName(String name) {
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Encodes the id of the last item of a page as an opaque cursor.
+   *
+   * @param id int, the id of the last item returned
+   * @return String, the cursor
+   */
+  private static String encodeCursor(int id) {
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(Integer.toString(id).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Decodes a cursor produced by encodeCursor.
+   *
+   * @param cursor String, the cursor, or null for the first page
+   * @return int, the id after which the page starts
+   * @throws BadRequestResponse if the cursor is malformed
+   */
+  private static int decodeCursor(String cursor) {
+    if (cursor == null) {
+      return Integer.MIN_VALUE;
+    }
     try {
-      MessageDigest digest = MessageDigest.getInstance("SHA-256");
-      String b64 = Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest(data));
-      return "W/\"" + b64 + "\"";
-    } catch (NoSuchAlgorithmException e) {
-      String fallback = Integer.toHexString(sb.toString().hashCode());
-      return "W/\"" + fallback + "\"";
+      return Integer.parseInt(
+          new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("Invalid cursor.");
     }
   }
+
+  /**
+   * Computes the key of a list request, shared by its etag and the response cache.
+   *
+   * @param filterName String, name filter used
+   * @return String, "all" for the full list or the normalized name filter
+   */
+  private static String listKey(String filterName) {
+    return (filterName == null || filterName.equalsIgnoreCase("all"))
+        ? "all"
+        : normalizeName(filterName);
+  }
+
+  /**
+   * Computes the etag for a list of items from the store revision and the filter used. The items
+   * themselves are not read, so revalidation costs the same whatever the inventory size.
+   *
+   * @param revision long, the store revision the list is based on
+   * @param key String, the list key as returned by listKey
+   * @return String, the computed etag
+   */
+  private String computeListEtag(long revision, String key) {
+    String filter =
+        Base64.getUrlEncoder()
+            .withoutPadding()
+            .encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    return "W/\"" + revisionEpoch + "." + revision + "-" + filter + "\"";
+  }
 }
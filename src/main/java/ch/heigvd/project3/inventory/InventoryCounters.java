@@ -0,0 +1,76 @@
+package ch.heigvd.project3.inventory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters behind the inventory stats, changed by every write instead of being computed from the
+ * items, so that reading them costs the same whatever the size of the inventory. They are
+ * LongAdders, spread over cells so that concurrent writes do not contend on a single counter.
+ *
+ * <p>The counters are read one after the other: during concurrent writes, a read can include a
+ * write in one figure and not yet in another.
+ */
+class InventoryCounters {
+  // Largest quantity of each stock bucket but the last one, which has no upper bound
+  private static final int[] BUCKET_MAX_NUM = {0, 5, 10, 25, 50, 100};
+
+  private final LongAdder items = new LongAdder();
+  private final LongAdder units = new LongAdder();
+  private final LongAdder[] buckets = new LongAdder[BUCKET_MAX_NUM.length + 1];
+
+  InventoryCounters() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Counts a write of an item, replacing what its previous state contributed.
+   *
+   * @param previous Item, the item before the write, or null if it was created
+   * @param next Item, the item after the write, or null if it was removed
+   */
+  void record(Item previous, Item next) {
+    if (previous != null) {
+      items.decrement();
+      units.add(-previous.num());
+      buckets[bucket(previous.num())].decrement();
+    }
+    if (next != null) {
+      items.increment();
+      units.add(next.num());
+      buckets[bucket(next.num())].increment();
+    }
+  }
+
+  /**
+   * @return InventoryStats, the current value of the counters
+   */
+  InventoryStats stats() {
+    List<InventoryStats.StockBucket> stock = new ArrayList<>(buckets.length);
+    int minNum = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      Integer maxNum = i < BUCKET_MAX_NUM.length ? BUCKET_MAX_NUM[i] : null;
+      stock.add(new InventoryStats.StockBucket(minNum, maxNum, buckets[i].sum()));
+      if (maxNum != null) {
+        minNum = maxNum + 1;
+      }
+    }
+    // The first bucket holds the items out of stock
+    return new InventoryStats(items.sum(), units.sum(), stock.get(0).items(), stock);
+  }
+
+  /**
+   * @param num int, a quantity, not negative
+   * @return int, the index of its bucket
+   */
+  private static int bucket(int num) {
+    int i = 0;
+    while (i < BUCKET_MAX_NUM.length && num > BUCKET_MAX_NUM[i]) {
+      i++;
+    }
+    return i;
+  }
+}
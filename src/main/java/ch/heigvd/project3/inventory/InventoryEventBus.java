@@ -0,0 +1,187 @@
+package ch.heigvd.project3.inventory;
+
+import io.javalin.json.JsonMapper;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process bus of inventory changes, kept in a ring of the most recent ones that also serves as
+ * the change log of delta syncs.
+ *
+ * <p>Publishing assigns the next store revision and reads the current state of the changed items
+ * under one lock, so changes are ordered by revision and the last change of an item always holds
+ * its latest state, even when two writes of the same item publish in the opposite order. Writers
+ * never wait for subscribers: a subscriber that falls further behind than the ring is told to
+ * reload instead.
+ */
+class InventoryEventBus {
+  // Number of changes kept for subscribers that are behind
+  private static final int CAPACITY = 4096;
+
+  /** A published change, identified by the store revision it produced. */
+  static final class Change {
+    private final long revision;
+    private final String type;
+    private final List<ItemChange> items;
+
+    // Encoded by the first subscriber that sends the change, then shared by all of them
+    private volatile String json;
+
+    Change(long revision, String type, List<ItemChange> items) {
+      this.revision = revision;
+      this.type = type;
+      this.items = items;
+    }
+
+    long revision() {
+      return revision;
+    }
+
+    String type() {
+      return type;
+    }
+
+    List<ItemChange> items() {
+      return items;
+    }
+
+    /**
+     * @param mapper JsonMapper, used on the first call only
+     * @return String, the items encoded as a JSON array
+     */
+    String json(JsonMapper mapper) {
+      String encoded = json;
+      if (encoded == null) {
+        encoded = mapper.toJsonString(items, List.class);
+        json = encoded;
+      }
+      return encoded;
+    }
+  }
+
+  /** Returned to a subscriber whose position is no longer in the ring. */
+  static final Change RESET = new Change(-1, "reset", List.of());
+
+  private final InventoryStore inventory;
+  private final AtomicLong revision;
+  private final Change[] ring = new Change[CAPACITY];
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition published = lock.newCondition();
+
+  /**
+   * @param inventory InventoryStore, the store the changes are read from
+   * @param revision AtomicLong, the store revision, only bumped through this bus
+   */
+  InventoryEventBus(InventoryStore inventory, AtomicLong revision) {
+    this.inventory = inventory;
+    this.revision = revision;
+  }
+
+  /**
+   * Publishes a change of one item. Must be called after the change is visible in the map.
+   *
+   * @param type String, "create", "update", "adjust" or "delete"
+   * @param id int, the changed item
+   * @return long, the new store revision
+   */
+  long publish(String type, int id) {
+    return publish(type, List.of(id));
+  }
+
+  /**
+   * Publishes a change of several items as one revision. Must be called after the changes are
+   * visible in the map.
+   *
+   * @param type String, the kind of change
+   * @param ids Collection<Integer>, the changed items
+   * @return long, the new store revision
+   */
+  long publish(String type, Collection<Integer> ids) {
+    lock.lock();
+    try {
+      List<ItemChange> items = new ArrayList<>(ids.size());
+      for (int id : ids) {
+        Item item = inventory.get(id);
+        items.add(new ItemChange(id, item, item == null));
+      }
+
+      long next = revision.incrementAndGet();
+      ring[(int) (next % CAPACITY)] = new Change(next, type, List.copyOf(items));
+      published.signalAll();
+      return next;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Collects the items changed between two revisions, from the changes still in the ring.
+   *
+   * @param after long, the revision the caller is up to date with
+   * @param upTo long, the last revision to include
+   * @return Set<Integer>, the changed ids in ascending order, or null if some of the changes are no
+   *     longer kept
+   */
+  Set<Integer> changedIds(long after, long upTo) {
+    lock.lock();
+    try {
+      if (after < 0 || after > upTo || after < upTo - CAPACITY) {
+        return null;
+      }
+      Set<Integer> changed = new TreeSet<>();
+      for (long r = after + 1; r <= upTo; r++) {
+        Change change = ring[(int) (r % CAPACITY)];
+        if (change == null || change.revision() != r) {
+          return null;
+        }
+        for (ItemChange item : change.items()) {
+          changed.add(item.id());
+        }
+      }
+      return changed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for the change following a revision.
+   *
+   * @param after long, the last revision the subscriber has seen
+   * @param timeout long, the longest time to wait in milliseconds
+   * @return Change, the next change, RESET if it is no longer kept, or null on timeout
+   * @throws InterruptedException if the subscriber thread is interrupted
+   */
+  Change next(long after, long timeout) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    lock.lock();
+    try {
+      while (true) {
+        long latest = revision.get();
+        if (after < latest - CAPACITY || after < 0 || after > latest) {
+          return RESET;
+        }
+        if (after < latest) {
+          Change change = ring[(int) ((after + 1) % CAPACITY)];
+          // Only possible for a revision published before the bus started recording
+          return change != null && change.revision() == after + 1 ? change : RESET;
+        }
+
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return null;
+        }
+        published.awaitNanos(remaining);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+}
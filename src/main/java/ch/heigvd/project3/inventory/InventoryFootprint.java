@@ -0,0 +1,95 @@
+package ch.heigvd.project3.inventory;
+
+import ch.heigvd.project3.persistence.ReplicationLog;
+import ch.heigvd.project3.persistence.WriteAheadLog;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures the heap used by an inventory store filled with a given number of items, then by an
+ * inventory controller serving it, whose indexes (ordered ids, names, quantities and search) come
+ * on top of the store, and the speed of random reads. Run one store per JVM so that the measures do
+ * not disturb each other:
+ *
+ * <pre>
+ * java -Xmx4g -cp target/project3-1.0-SNAPSHOT.jar \
+ *     ch.heigvd.project3.inventory.InventoryFootprint compact 1000000
+ * </pre>
+ */
+public final class InventoryFootprint {
+  private static final int READS = 5_000_000;
+
+  private InventoryFootprint() {}
+
+  /**
+   * @param args the store ("map" or "compact") and the number of items
+   */
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.err.println("Usage: InventoryFootprint map|compact <items>");
+      System.exit(1);
+    }
+    String kind = args[0];
+    int count = Integer.parseInt(args[1]);
+
+    long before = usedHeap();
+    long start = System.nanoTime();
+    InventoryStore store =
+        switch (kind) {
+          case "map" -> new MapInventoryStore();
+          case "compact" -> new CompactInventoryStore();
+          default -> throw new IllegalArgumentException("Unknown store " + kind);
+        };
+    for (int id = 1; id <= count; id++) {
+      store.put(Item.versioned(id, "item-" + id, id % 1000, 1));
+    }
+    long filled = System.nanoTime();
+    long used = usedHeap() - before;
+
+    InventoryController controller =
+        new InventoryController(
+            store, WriteAheadLog.disabled(), new ReplicationLog(store, new ConcurrentHashMap<>()));
+    long indexed = System.nanoTime();
+    long total = usedHeap() - before;
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long checksum = 0;
+    long readStart = System.nanoTime();
+    for (int i = 0; i < READS; i++) {
+      checksum += store.get(random.nextInt(1, count + 1)).num();
+    }
+    long readEnd = System.nanoTime();
+
+    System.out.printf(
+        Locale.ROOT,
+        "%s %d items: store %.1f MiB (%.1f bytes/item), with the controller %.1f MiB (%.1f"
+            + " bytes/item), filled in %d ms, indexed in %d ms, %.0f ns/read (%d)%n",
+        kind,
+        store.size(),
+        used / (1024.0 * 1024.0),
+        (double) used / count,
+        total / (1024.0 * 1024.0),
+        (double) total / count,
+        (filled - start) / 1_000_000,
+        (indexed - filled) / 1_000_000,
+        (double) (readEnd - readStart) / READS,
+        checksum);
+    Reference.reachabilityFence(store);
+    Reference.reachabilityFence(controller);
+  }
+
+  /**
+   * @return long, the bytes used on the heap after a full collection
+   */
+  private static long usedHeap() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+}
@@ -0,0 +1,70 @@
+package ch.heigvd.project3.inventory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of encoded JSON bodies for inventory list responses. Each entry is tagged with the store
+ * revision it was built from, so an entry is only ever served for that exact revision.
+ */
+class InventoryResponseCache {
+  // Number of distinct name filters kept besides the full list
+  private static final int MAX_FILTERS = 64;
+
+  private record Entry(long revision, byte[] body) {}
+
+  private volatile Entry all;
+
+  private final Map<String, Entry> filtered =
+      new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > MAX_FILTERS;
+        }
+      };
+
+  /**
+   * Returns the cached body for a list key, if it was built from the given revision.
+   *
+   * @param key String, "all" for the full list or the normalized name filter
+   * @param revision long, the current store revision
+   * @return byte[], the encoded body or null on a miss
+   */
+  byte[] get(String key, long revision) {
+    Entry entry;
+    if ("all".equals(key)) {
+      entry = all;
+    } else {
+      synchronized (filtered) {
+        entry = filtered.get(key);
+      }
+    }
+    return entry != null && entry.revision() == revision ? entry.body() : null;
+  }
+
+  /**
+   * Stores the encoded body of a list response.
+   *
+   * @param key String, "all" for the full list or the normalized name filter
+   * @param revision long, the store revision read before the items were collected
+   * @param body byte[], the encoded body
+   */
+  void put(String key, long revision, byte[] body) {
+    Entry entry = new Entry(revision, body);
+    if ("all".equals(key)) {
+      all = entry;
+    } else {
+      synchronized (filtered) {
+        filtered.put(key, entry);
+      }
+    }
+  }
+
+  /** Drops every cached body, called after each write to the store. */
+  void invalidate() {
+    all = null;
+    synchronized (filtered) {
+      filtered.clear();
+    }
+  }
+}
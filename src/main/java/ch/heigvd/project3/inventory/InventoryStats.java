@@ -0,0 +1,20 @@
+package ch.heigvd.project3.inventory;
+
+import java.util.List;
+
+/**
+ * Aggregates of the whole inventory.
+ *
+ * @param items the number of distinct items
+ * @param units the sum of the quantities of all items
+ * @param outOfStock the number of items with a quantity of zero
+ * @param stock the number of items per quantity range, from the lowest quantities
+ */
+public record InventoryStats(long items, long units, long outOfStock, List<StockBucket> stock) {
+  /**
+   * @param minNum the smallest quantity of the range
+   * @param maxNum the largest quantity of the range, or null for the last range
+   * @param items the number of items whose quantity is in the range
+   */
+  public record StockBucket(int minNum, Integer maxNum, long items) {}
+}
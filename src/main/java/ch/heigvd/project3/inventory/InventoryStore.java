@@ -0,0 +1,105 @@
+package ch.heigvd.project3.inventory;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Storage of the inventory items by id. Implementations are thread-safe, and the compute methods
+ * apply their function atomically for the given id, so that a write can be logged while its item is
+ * locked. Iteration is weakly consistent, like the iterators of ConcurrentHashMap.
+ *
+ * <p>As their function can have side effects, the compute methods fail before calling it whenever
+ * they can: once it returned, its item is stored unless it is invalid for the implementation, which
+ * callers must rule out beforehand (see CompactInventoryStore for its limits).
+ */
+public interface InventoryStore extends Iterable<Item> {
+
+  /**
+   * @param id int, the item id
+   * @return Item, the stored item, or null if there is none
+   */
+  Item get(int id);
+
+  /**
+   * @param id int, the item id
+   * @return boolean, true if an item is stored under this id
+   */
+  boolean contains(int id);
+
+  /**
+   * @return int, the number of stored items
+   */
+  int size();
+
+  /**
+   * Stores an item, replacing the one with the same id.
+   *
+   * @param item Item, the item to store
+   * @return Item, the replaced item, or null if there was none
+   */
+  Item put(Item item);
+
+  /**
+   * @param id int, the item id
+   * @return Item, the removed item, or null if there was none
+   */
+  Item remove(int id);
+
+  /**
+   * Removes an item once a function accepted it. If the function throws, the item is left in place
+   * and the exception is propagated; once it returned, the item is removed.
+   *
+   * @param id int, the item id
+   * @param check Consumer<Item>, checks the item while it is locked
+   * @return Item, the removed item, or null if there was none
+   */
+  Item remove(int id, Consumer<Item> check);
+
+  /**
+   * Stores the item created by a function if no item has this id yet. If the function throws,
+   * nothing is stored and the exception is propagated; once it returned, the item is stored.
+   *
+   * @param id int, the item id
+   * @param create IntFunction<Item>, creates the item while the id is locked
+   * @return Item, the item stored under this id
+   */
+  Item computeIfAbsent(int id, IntFunction<Item> create);
+
+  /**
+   * Replaces an item by the result of a function of it. If the function throws, the item is left
+   * unchanged and the exception is propagated; once it returned, the new item is stored.
+   *
+   * @param id int, the item id
+   * @param update UnaryOperator<Item>, computes the new item, with the same id, while the item is
+   *     locked
+   * @return Item, the new item, or null if there was none
+   */
+  Item computeIfPresent(int id, UnaryOperator<Item> update);
+
+  /**
+   * @return Iterator<Item>, the stored items in no particular order
+   */
+  @Override
+  Iterator<Item> iterator();
+
+  /**
+   * Creates the store selected by the INVENTORY_STORE environment variable: "map" (default) keeps
+   * Item records in a ConcurrentHashMap, "compact" keeps them in primitive arrays.
+   *
+   * @return InventoryStore, an empty store
+   */
+  static InventoryStore fromEnvironment() {
+    String kind = System.getenv("INVENTORY_STORE");
+    if (kind == null || kind.isBlank()) {
+      return new MapInventoryStore();
+    }
+    return switch (kind.trim().toLowerCase(Locale.ROOT)) {
+      case "map" -> new MapInventoryStore();
+      case "compact" -> new CompactInventoryStore();
+      default -> throw new IllegalArgumentException("Unknown INVENTORY_STORE " + kind);
+    };
+  }
+}
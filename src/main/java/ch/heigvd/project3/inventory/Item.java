@@ -1,4 +1,28 @@
 package ch.heigvd.project3.inventory;
 
-/** Represents an item in the inventory with an ID, name, and quantity. */
-public record Item(int id, String name, int num) {}
+import ch.heigvd.project3.util.ETagUtil;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Represents an item in the inventory with an ID, name, and quantity. Stored items also carry a
+ * version and the ETag derived from it, both computed once when the item is written.
+ */
+public record Item(
+    int id, String name, int num, @JsonIgnore long version, @JsonIgnore String etag) {
+  public Item(int id, String name, int num) {
+    this(id, name, num, 0, null);
+  }
+
+  /**
+   * Creates the stored form of an item, with its strong ETag precomputed.
+   *
+   * @param id int, the item ID
+   * @param name String, the item name
+   * @param num int, the quantity
+   * @param version long, the version of the item, incremented on every write
+   * @return Item, the item ready to be stored
+   */
+  public static Item versioned(int id, String name, int num, long version) {
+    return new Item(id, name, num, version, ETagUtil.of(id, version));
+  }
+}
@@ -0,0 +1,10 @@
+package ch.heigvd.project3.inventory;
+
+/**
+ * The state of an item after a change: the item itself, or a tombstone if it was deleted.
+ *
+ * @param id the id of the changed item
+ * @param item the item as stored after the change, or null if it was deleted
+ * @param deleted true if the item no longer exists
+ */
+public record ItemChange(int id, Item item, boolean deleted) {}
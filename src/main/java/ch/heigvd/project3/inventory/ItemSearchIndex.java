@@ -0,0 +1,476 @@
+package ch.heigvd.project3.inventory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index of item names for partial name search. Every name is indexed by its trigrams, the sequences
+ * of three consecutive characters, by its first two characters, and by the first two characters of
+ * each of its other words.
+ *
+ * <p>Postings are sorted by name length, then by id, which is the order of the results within a
+ * match tier. A search walks the tiers from the best to the worst: the names starting with the
+ * query, found among the names with the same first two characters, then the names with another word
+ * starting with it, then the other names containing it. A query of three characters or more
+ * intersects those postings with the postings of its trigrams, and shorter queries merge the
+ * postings of the prefixes they start. Every walk goes in result order and stops as soon as the
+ * limit is reached, so a search costs about the limit, not the number of matching names.
+ *
+ * <p>Like the inventory event bus, refreshing reads the current state of the changed item under the
+ * index lock, so the index ends up holding the latest name even when two writes of the same item
+ * refresh it in the opposite order.
+ */
+class ItemSearchIndex {
+  // Match tiers, from the best to the worst
+  private static final int EXACT = 0;
+  private static final int NAME_PREFIX = 1;
+  private static final int WORD_PREFIX = 2;
+  private static final int SUBSTRING = 3;
+  private static final int NO_MATCH = 4;
+
+  private final InventoryStore inventory;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // Normalized name of every indexed item
+  private final Map<Integer, String> names = new HashMap<>();
+
+  // Trigram, three chars packed in a long -> names containing it
+  private final Map<Long, Postings> trigrams = new HashMap<>();
+
+  // First two characters of the name -> names starting with them
+  private final TreeMap<String, Postings> namePrefixes = new TreeMap<>();
+
+  // First two characters of a word after the first character -> names having such a word, so that
+  // every name costs one entry per word whatever its length
+  private final TreeMap<String, Postings> wordPrefixes = new TreeMap<>();
+
+  /**
+   * @param inventory InventoryStore, the items the names are read from
+   */
+  ItemSearchIndex(InventoryStore inventory) {
+    this.inventory = inventory;
+  }
+
+  /**
+   * Indexes the current name of an item, or unindexes it if it was removed. Must be called after
+   * the change is visible in the store.
+   *
+   * @param id int, the changed item
+   */
+  void refresh(int id) {
+    refresh(List.of(id));
+  }
+
+  /**
+   * Indexes the current name of several items. Must be called after the changes are visible in the
+   * store.
+   *
+   * @param ids Collection<Integer>, the changed items
+   */
+  void refresh(Collection<Integer> ids) {
+    lock.writeLock().lock();
+    try {
+      for (int id : ids) {
+        Item item = inventory.get(id);
+        String name = item == null ? null : normalize(item.name());
+        String indexed = names.get(id);
+        if (name != null && name.equals(indexed)) {
+          continue;
+        }
+        if (indexed != null) {
+          unindex(id, indexed);
+        }
+        if (name != null) {
+          index(id, name);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Finds the items whose name contains the query, ignoring case. The name equal to the query comes
+   * first, then the names starting with it, the names with a word starting with it, and the other
+   * names containing it; shorter names first within each group, then by id. Queries shorter than
+   * three characters only match the start of the name or of a word.
+   *
+   * @param query String, the searched text, at least one character
+   * @param limit int, the largest number of ids returned
+   * @return int[], the ids of the best matching items, best first
+   */
+  int[] search(String query, int limit) {
+    String q = normalize(query);
+    Matches matches = new Matches(limit);
+
+    lock.readLock().lock();
+    try {
+      if (q.length() < 3) {
+        String end = q + Character.MAX_VALUE;
+        merge(namePrefixes.subMap(q, true, end, false).values(), q, NAME_PREFIX, matches);
+        merge(wordPrefixes.subMap(q, true, end, false).values(), q, WORD_PREFIX, matches);
+      } else {
+        Postings[] lists = postingsOf(q);
+        if (lists == null) {
+          return new int[0];
+        }
+        String prefix = q.substring(0, 2);
+        intersect(lists, namePrefixes.get(prefix), q, NAME_PREFIX, matches);
+        intersect(lists, wordPrefixes.get(prefix), q, WORD_PREFIX, matches);
+        intersect(lists, null, q, SUBSTRING, matches);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return matches.ids();
+  }
+
+  /**
+   * Adds the names of a tier found in the union of prefix postings, in result order, until the
+   * matches are full. Called with the read lock held.
+   *
+   * @param lists Collection<Postings>, the postings of the prefixes starting with the query
+   * @param query String, the normalized query
+   * @param tier int, NAME_PREFIX for the names starting with the query, or WORD_PREFIX
+   * @param matches Matches, receives the matching ids
+   */
+  private void merge(Collection<Postings> lists, String query, int tier, Matches matches) {
+    if (matches.full() || lists.isEmpty()) {
+      return;
+    }
+    Postings[] all = lists.toArray(new Postings[0]);
+    int[] positions = new int[all.length];
+    long previous = -1;
+    while (!matches.full()) {
+      int next = -1;
+      long key = Long.MAX_VALUE;
+      for (int l = 0; l < all.length; l++) {
+        if (positions[l] < all[l].size && all[l].keys[positions[l]] < key) {
+          next = l;
+          key = all[l].keys[positions[l]];
+        }
+      }
+      if (next < 0) {
+        return;
+      }
+      positions[next]++;
+      // A name with two words starting with a short query is in two postings
+      if (key == previous) {
+        continue;
+      }
+      previous = key;
+      offer((int) key, query, tier, matches);
+    }
+  }
+
+  /**
+   * Adds the names of a tier found in the intersection of the trigram postings of the query and,
+   * for a prefix tier, the postings of the first two characters of the query, in result order,
+   * until the matches are full. Called with the read lock held.
+   *
+   * @param lists Postings[], the postings of the trigrams of the query, shortest first
+   * @param prefix Postings, the postings of the first two characters of the query in the prefix
+   *     tiers, null if there are none
+   * @param query String, the normalized query
+   * @param tier int, NAME_PREFIX, WORD_PREFIX or SUBSTRING
+   * @param matches Matches, receives the matching ids
+   */
+  private void intersect(
+      Postings[] lists, Postings prefix, String query, int tier, Matches matches) {
+    if (matches.full()) {
+      return;
+    }
+    Postings[] all = lists;
+    if (tier != SUBSTRING) {
+      if (prefix == null) {
+        return;
+      }
+      all = Arrays.copyOf(lists, lists.length + 1);
+      all[lists.length] = prefix;
+      Arrays.sort(all, (a, b) -> Integer.compare(a.size, b.size));
+    }
+
+    // Walks the shortest list, moving forward in the others as all of them are sorted
+    Postings shortest = all[0];
+    int[] positions = new int[all.length];
+    candidates:
+    for (int i = 0; i < shortest.size && !matches.full(); i++) {
+      long key = shortest.keys[i];
+      for (int l = 1; l < all.length; l++) {
+        Postings list = all[l];
+        int p = list.seek(positions[l], key);
+        positions[l] = p;
+        if (p == list.size) {
+          return;
+        }
+        if (list.keys[p] != key) {
+          continue candidates;
+        }
+      }
+      offer((int) key, query, tier, matches);
+    }
+  }
+
+  /**
+   * Adds a candidate to the matches if its name is in the given tier.
+   *
+   * @param id int, the candidate item
+   * @param query String, the normalized query
+   * @param tier int, the tier searched, NAME_PREFIX also accepting the exact name
+   * @param matches Matches, receives the id
+   */
+  private void offer(int id, String query, int tier, Matches matches) {
+    int found = tier(names.get(id), query);
+    if (found == tier || (tier == NAME_PREFIX && found == EXACT)) {
+      matches.add(id);
+    }
+  }
+
+  /**
+   * @param query String, a normalized query of at least three characters
+   * @return Postings[], the postings of its distinct trigrams, shortest first, or null if one of
+   *     them is not indexed
+   */
+  private Postings[] postingsOf(String query) {
+    long[] keys = new long[query.length() - 2];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = trigram(query, i);
+    }
+    Arrays.sort(keys);
+
+    Postings[] lists = new Postings[keys.length];
+    int count = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (i > 0 && keys[i] == keys[i - 1]) {
+        continue;
+      }
+      Postings postings = trigrams.get(keys[i]);
+      if (postings == null) {
+        return null;
+      }
+      lists[count++] = postings;
+    }
+    lists = Arrays.copyOf(lists, count);
+    Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+    return lists;
+  }
+
+  /**
+   * Adds a name to the postings. Called with the write lock held.
+   *
+   * @param id int, the item
+   * @param name String, its normalized name
+   */
+  private void index(int id, String name) {
+    names.put(id, name);
+    long key = key(id, name);
+    for (int i = 0; i + 3 <= name.length(); i++) {
+      trigrams.computeIfAbsent(trigram(name, i), k -> new Postings()).add(key);
+    }
+    if (!name.isEmpty()) {
+      namePrefixes.computeIfAbsent(prefix(name, 0), k -> new Postings()).add(key);
+    }
+    for (int i = 1; i < name.length(); i++) {
+      if (isWordStart(name, i)) {
+        wordPrefixes.computeIfAbsent(prefix(name, i), k -> new Postings()).add(key);
+      }
+    }
+  }
+
+  /**
+   * Removes a name from the postings, dropping the postings left empty. Called with the write lock
+   * held.
+   *
+   * @param id int, the item
+   * @param name String, its indexed name
+   */
+  private void unindex(int id, String name) {
+    names.remove(id);
+    long key = key(id, name);
+    for (int i = 0; i + 3 <= name.length(); i++) {
+      Long trigram = trigram(name, i);
+      Postings postings = trigrams.get(trigram);
+      if (postings != null && postings.remove(key) && postings.size == 0) {
+        trigrams.remove(trigram);
+      }
+    }
+    if (!name.isEmpty()) {
+      unindexPrefix(namePrefixes, prefix(name, 0), key);
+    }
+    for (int i = 1; i < name.length(); i++) {
+      if (isWordStart(name, i)) {
+        unindexPrefix(wordPrefixes, prefix(name, i), key);
+      }
+    }
+  }
+
+  /**
+   * @param prefixes TreeMap<String, Postings>, the name or word prefixes
+   * @param prefix String, a prefix of the removed name
+   * @param key long, the key of the removed name
+   */
+  private static void unindexPrefix(TreeMap<String, Postings> prefixes, String prefix, long key) {
+    Postings postings = prefixes.get(prefix);
+    if (postings != null && postings.remove(key) && postings.size == 0) {
+      prefixes.remove(prefix);
+    }
+  }
+
+  /**
+   * @param name String, a normalized name
+   * @param query String, the normalized query
+   * @return int, the tier of the name for the query, NO_MATCH if it does not contain it
+   */
+  private static int tier(String name, String query) {
+    if (name.equals(query)) {
+      return EXACT;
+    } else if (name.startsWith(query)) {
+      return NAME_PREFIX;
+    } else if (startsWord(name, query)) {
+      return WORD_PREFIX;
+    } else if (name.contains(query)) {
+      return SUBSTRING;
+    }
+    return NO_MATCH;
+  }
+
+  /**
+   * @param name String, a normalized name
+   * @param query String, the normalized query
+   * @return boolean, true if a word of the name starts with the query
+   */
+  private static boolean startsWord(String name, String query) {
+    for (int i = name.indexOf(query); i >= 0; i = name.indexOf(query, i + 1)) {
+      if (isWordStart(name, i)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param id int, an item
+   * @param name String, its normalized name
+   * @return long, the posting key of the item, sorting shorter names first, then by id
+   */
+  private static long key(int id, String name) {
+    return ((long) name.length() << 32) | id;
+  }
+
+  private static boolean isWordStart(String name, int i) {
+    return Character.isLetterOrDigit(name.charAt(i))
+        && (i == 0 || !Character.isLetterOrDigit(name.charAt(i - 1)));
+  }
+
+  private static String prefix(String name, int i) {
+    return name.substring(i, Math.min(i + 2, name.length()));
+  }
+
+  private static long trigram(String name, int i) {
+    return ((long) name.charAt(i) << 32) | ((long) name.charAt(i + 1) << 16) | name.charAt(i + 2);
+  }
+
+  private static String normalize(String name) {
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  /** The ids found so far, in result order, up to the limit. */
+  private static final class Matches {
+    private final int[] ids;
+    private int size;
+
+    /**
+     * @param limit int, the number of ids kept
+     */
+    Matches(int limit) {
+      ids = new int[Math.max(0, Math.min(limit, 1024))];
+    }
+
+    boolean full() {
+      return size == ids.length;
+    }
+
+    /**
+     * @param id int, the next match, worse than the ones already added
+     */
+    void add(int id) {
+      ids[size++] = id;
+    }
+
+    /**
+     * @return int[], the ids added, best first
+     */
+    int[] ids() {
+      return Arrays.copyOf(ids, size);
+    }
+  }
+
+  /**
+   * Names holding a trigram or a prefix, as keys packing the name length and the id, sorted by
+   * length then id.
+   */
+  private static final class Postings {
+    private long[] keys = new long[2];
+    private int size;
+
+    /**
+     * @param key long, the key of a name
+     */
+    void add(long key) {
+      int at =
+          size == 0 || keys[size - 1] < key ? -(size + 1) : Arrays.binarySearch(keys, 0, size, key);
+      if (at >= 0) {
+        return;
+      }
+      at = -(at + 1);
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+      }
+      System.arraycopy(keys, at, keys, at + 1, size - at);
+      keys[at] = key;
+      size++;
+    }
+
+    /**
+     * @param key long, the key of a name
+     * @return boolean, true if it was present
+     */
+    boolean remove(long key) {
+      int at = Arrays.binarySearch(keys, 0, size, key);
+      if (at < 0) {
+        return false;
+      }
+      System.arraycopy(keys, at + 1, keys, at, size - at - 1);
+      size--;
+      return true;
+    }
+
+    /**
+     * Finds the first key at or after a position that is not smaller than a given key, galloping
+     * then searching by halves, as an intersection may skip long runs of keys.
+     *
+     * @param from int, the position to start from
+     * @param key long, the key looked for
+     * @return int, the position of the first key not smaller than it, size if there is none
+     */
+    int seek(int from, long key) {
+      if (from >= size || keys[from] >= key) {
+        return from;
+      }
+      int low = from;
+      int step = 1;
+      while (low + step < size && keys[low + step] < key) {
+        low += step;
+        step <<= 1;
+      }
+      int at = Arrays.binarySearch(keys, low + 1, Math.min(low + step, size), key);
+      return at >= 0 ? at : -(at + 1);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package ch.heigvd.project3.inventory;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Inventory store keeping the Item records in a ConcurrentHashMap. Reads return the stored records
+ * without copying, at the cost of a map node, a boxed key, the record and its strings per item.
+ */
+public class MapInventoryStore implements InventoryStore {
+  private final ConcurrentHashMap<Integer, Item> items = new ConcurrentHashMap<>();
+
+  @Override
+  public Item get(int id) {
+    return items.get(id);
+  }
+
+  @Override
+  public boolean contains(int id) {
+    return items.containsKey(id);
+  }
+
+  @Override
+  public int size() {
+    return items.size();
+  }
+
+  @Override
+  public Item put(Item item) {
+    return items.put(item.id(), item);
+  }
+
+  @Override
+  public Item remove(int id) {
+    return items.remove(id);
+  }
+
+  @Override
+  public Item remove(int id, Consumer<Item> check) {
+    Item[] removed = new Item[1];
+    items.computeIfPresent(
+        id,
+        (key, current) -> {
+          check.accept(current);
+          removed[0] = current;
+          return null;
+        });
+    return removed[0];
+  }
+
+  @Override
+  public Item computeIfAbsent(int id, IntFunction<Item> create) {
+    return items.computeIfAbsent(id, create::apply);
+  }
+
+  @Override
+  public Item computeIfPresent(int id, UnaryOperator<Item> update) {
+    return items.computeIfPresent(id, (key, current) -> update.apply(current));
+  }
+
+  @Override
+  public Iterator<Item> iterator() {
+    return items.values().iterator();
+  }
+}
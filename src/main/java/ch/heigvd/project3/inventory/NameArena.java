@@ -0,0 +1,312 @@
+package ch.heigvd.project3.inventory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only store of names as UTF-8 bytes, referenced by an int. The bytes live in fixed-size
+ * chunks that never move and are never overwritten, so a name can be read without a lock by anyone
+ * who received its reference through a happens-before edge.
+ *
+ * <p>Equal names are stored once and reference counted. The bytes of a name that is no longer used
+ * are not reused: the owner copies the live names to a new arena once too many bytes are wasted.
+ *
+ * <p>Record layout: reference count (1 byte, saturated at 255 and then never released), length (2
+ * bytes), UTF-8 bytes. A reference is the chunk index followed by the offset in the chunk.
+ *
+ * <p>The room for a name can be reserved before it is known, so that a writer finds out that the
+ * arena is full before doing anything that interning the name should not undo.
+ */
+final class NameArena {
+  static final int CHUNK_BITS = 20;
+  static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+  // References stay positive
+  private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS);
+  private static final int HEADER = 3;
+  private static final int MAX_NAME_BYTES = 0xFFFF;
+  private static final int SATURATED = 0xFF;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  // Replaced by a larger copy when full, the chunks themselves are shared
+  private volatile byte[][] chunks = new byte[4][];
+  private int chunkCount;
+  private int position = CHUNK_SIZE;
+
+  // Open addressing table of reference + 1 (0 when empty), keyed by the hash of the bytes
+  private int[] table = new int[1024];
+  private int entries;
+
+  private long liveBytes;
+  private long wastedBytes;
+
+  // Names of the longest length that still fit, and the ones that the writers holding a
+  // reservation may append
+  private volatile long room = room(0, CHUNK_SIZE);
+  private final AtomicInteger reservations = new AtomicInteger();
+
+  /**
+   * Reserves the room for one name of the longest length, so that the next name interned by the
+   * caller cannot fail for lack of room. Every reservation must be ended by unreserve.
+   *
+   * @throws IllegalStateException if the arena is full
+   */
+  void reserve() {
+    if (reservations.incrementAndGet() > room) {
+      reservations.decrementAndGet();
+      throw new IllegalStateException("Name arena full");
+    }
+  }
+
+  /** Ends a reservation, once the name is interned or if it will not be. */
+  void unreserve() {
+    reservations.decrementAndGet();
+  }
+
+  /**
+   * Stores a name, or counts one more use of it if an equal name is already stored.
+   *
+   * @param name String, the name
+   * @return int, the reference of the name
+   * @throws IllegalArgumentException if the name is longer than 65535 UTF-8 bytes
+   */
+  int intern(String name) {
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_NAME_BYTES) {
+      throw new IllegalArgumentException("Name longer than " + MAX_NAME_BYTES + " bytes");
+    }
+    int hash = hash(bytes, 0, bytes.length);
+
+    lock.lock();
+    try {
+      int mask = table.length - 1;
+      int i = hash & mask;
+      while (table[i] != 0) {
+        int ref = table[i] - 1;
+        if (matches(ref, bytes)) {
+          retain(ref);
+          return ref;
+        }
+        i = (i + 1) & mask;
+      }
+
+      int ref = append(bytes);
+      table[i] = ref + 1;
+      entries++;
+      liveBytes += HEADER + bytes.length;
+      if (entries * 4 > table.length * 3) {
+        growTable();
+      }
+      return ref;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Counts one use of a name less. The last use makes its bytes wasted.
+   *
+   * @param ref int, the reference of the name
+   */
+  void release(int ref) {
+    lock.lock();
+    try {
+      byte[] chunk = chunks[ref >>> CHUNK_BITS];
+      int offset = ref & (CHUNK_SIZE - 1);
+      int count = chunk[offset] & 0xFF;
+      if (count == SATURATED) {
+        return;
+      }
+      if (count > 1) {
+        chunk[offset] = (byte) (count - 1);
+        return;
+      }
+
+      chunk[offset] = 0;
+      int length = length(chunk, offset);
+      liveBytes -= HEADER + length;
+      wastedBytes += HEADER + length;
+      unindex(ref, hash(chunk, offset + HEADER, length));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param ref int, the reference of a name in use
+   * @return String, the name
+   */
+  String read(int ref) {
+    byte[] chunk = chunks[ref >>> CHUNK_BITS];
+    int offset = ref & (CHUNK_SIZE - 1);
+    return new String(chunk, offset + HEADER, length(chunk, offset), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return long, the bytes of the names in use, headers included
+   */
+  long liveBytes() {
+    lock.lock();
+    try {
+      return liveBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return long, the bytes of names no longer used, headers included
+   */
+  long wastedBytes() {
+    lock.lock();
+    try {
+      return wastedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Copies a name at the end of the current chunk, starting a new chunk if it does not fit.
+   *
+   * @param bytes byte[], the UTF-8 bytes of the name
+   * @return int, the reference of the copy
+   */
+  private int append(byte[] bytes) {
+    int size = HEADER + bytes.length;
+    if (position + size > CHUNK_SIZE) {
+      if (chunkCount == MAX_CHUNKS) {
+        throw new IllegalStateException("Name arena full");
+      }
+      byte[][] current = chunks;
+      if (chunkCount == current.length) {
+        current = Arrays.copyOf(current, Math.min(MAX_CHUNKS, current.length * 2));
+      }
+      current[chunkCount] = new byte[CHUNK_SIZE];
+      chunks = current;
+      chunkCount++;
+      position = 0;
+    }
+
+    byte[] chunk = chunks[chunkCount - 1];
+    int offset = position;
+    chunk[offset] = 1;
+    chunk[offset + 1] = (byte) (bytes.length >>> 8);
+    chunk[offset + 2] = (byte) bytes.length;
+    System.arraycopy(bytes, 0, chunk, offset + HEADER, bytes.length);
+    position += size;
+    room = room(chunkCount, position);
+    return ((chunkCount - 1) << CHUNK_BITS) | offset;
+  }
+
+  /**
+   * @param chunkCount int, the number of chunks allocated
+   * @param position int, the position in the last one
+   * @return long, the number of names of the longest length that still fit
+   */
+  private static long room(int chunkCount, int position) {
+    int record = HEADER + MAX_NAME_BYTES;
+    return (long) (MAX_CHUNKS - chunkCount) * (CHUNK_SIZE / record)
+        + (CHUNK_SIZE - position) / record;
+  }
+
+  /**
+   * @param ref int, the reference of a stored name
+   * @param bytes byte[], the UTF-8 bytes of a name
+   * @return boolean, true if both names are equal
+   */
+  private boolean matches(int ref, byte[] bytes) {
+    byte[] chunk = chunks[ref >>> CHUNK_BITS];
+    int offset = ref & (CHUNK_SIZE - 1);
+    int start = offset + HEADER;
+    return length(chunk, offset) == bytes.length
+        && Arrays.equals(chunk, start, start + bytes.length, bytes, 0, bytes.length);
+  }
+
+  /**
+   * Counts one more use of a stored name, unless its count is saturated.
+   *
+   * @param ref int, the reference of the name
+   */
+  private void retain(int ref) {
+    byte[] chunk = chunks[ref >>> CHUNK_BITS];
+    int offset = ref & (CHUNK_SIZE - 1);
+    int count = chunk[offset] & 0xFF;
+    if (count < SATURATED) {
+      chunk[offset] = (byte) (count + 1);
+    }
+  }
+
+  /**
+   * Removes a reference from the table, shifting back the entries that follow it.
+   *
+   * @param ref int, the reference to remove
+   * @param hash int, the hash of its bytes
+   */
+  private void unindex(int ref, int hash) {
+    int mask = table.length - 1;
+    int i = hash & mask;
+    while (table[i] != ref + 1) {
+      i = (i + 1) & mask;
+    }
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (table[j] == 0) {
+        break;
+      }
+      int home = hashAt(table[j] - 1) & mask;
+      // The entry at j can fill the hole at i if its home position is not between them
+      boolean between = i <= j ? i < home && home <= j : i < home || home <= j;
+      if (!between) {
+        table[i] = table[j];
+        i = j;
+      }
+    }
+    table[i] = 0;
+    entries--;
+  }
+
+  /** Doubles the table. */
+  private void growTable() {
+    int[] grown = new int[table.length * 2];
+    int mask = grown.length - 1;
+    for (int entry : table) {
+      if (entry != 0) {
+        int i = hashAt(entry - 1) & mask;
+        while (grown[i] != 0) {
+          i = (i + 1) & mask;
+        }
+        grown[i] = entry;
+      }
+    }
+    table = grown;
+  }
+
+  /**
+   * @param ref int, the reference of a stored name
+   * @return int, the hash of its bytes
+   */
+  private int hashAt(int ref) {
+    byte[] chunk = chunks[ref >>> CHUNK_BITS];
+    int offset = ref & (CHUNK_SIZE - 1);
+    return hash(chunk, offset + HEADER, length(chunk, offset));
+  }
+
+  private static int length(byte[] chunk, int offset) {
+    return ((chunk[offset + 1] & 0xFF) << 8) | (chunk[offset + 2] & 0xFF);
+  }
+
+  private static int hash(byte[] bytes, int from, int length) {
+    int h = 1;
+    for (int i = from; i < from + length; i++) {
+      h = 31 * h + bytes[i];
+    }
+    // Spreads names that differ in their last characters, which would otherwise fill runs
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
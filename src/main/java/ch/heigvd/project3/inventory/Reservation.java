@@ -0,0 +1,13 @@
+package ch.heigvd.project3.inventory;
+
+/**
+ * A hold on units of an item, which are no longer available to other buyers until it is committed,
+ * released or expires.
+ *
+ * @param id the id of the reservation, given back to commit or release it
+ * @param itemId the id of the reserved item
+ * @param quantity the number of units held
+ * @param expiresAt the time the hold expires, in milliseconds since the epoch
+ * @param available the units of the item still available once the hold was taken
+ */
+public record Reservation(long id, int itemId, int quantity, long expiresAt, int available) {}
@@ -0,0 +1,4 @@
+package ch.heigvd.project3.inventory;
+
+/** Names the reservation to commit or release. */
+public record ReservationAction(Long reservation) {}
@@ -0,0 +1,9 @@
+package ch.heigvd.project3.inventory;
+
+/**
+ * Represents a request to hold units of an item.
+ *
+ * @param quantity the number of units to hold
+ * @param ttlSeconds how long the hold lasts unless committed or released, optional
+ */
+public record ReservationRequest(Integer quantity, Integer ttlSeconds) {}
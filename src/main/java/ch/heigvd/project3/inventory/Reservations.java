@@ -0,0 +1,132 @@
+package ch.heigvd.project3.inventory;
+
+import ch.heigvd.project3.util.HashedTimerWheel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The open holds on item units and the number of units they reserve per item. Holds live in memory
+ * only: after a restart every unit is available again.
+ *
+ * <p>A hold is opened while its item is locked in the store, after checking the units available, so
+ * the reserved units never exceed the quantity as long as the writes that lower a quantity check
+ * them too. A hold is closed once, by whichever of commit, release and expiry comes first. Closing
+ * only lowers the reserved units, so release and expiry do not need the item lock. Expiry runs on a
+ * hashed timer wheel, so that opening and closing a hold costs O(1) however many are open.
+ */
+class Reservations {
+  // Precision of the expiry and number of buckets: one turn of the wheel lasts 102.4 seconds
+  private static final long TICK_MILLIS = 100;
+  private static final int WHEEL_SIZE = 1024;
+
+  /** An open or closed hold. */
+  static final class Hold {
+    private final long id;
+    private final int itemId;
+    private final int quantity;
+    private final long expiresAt;
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
+    // Set before the hold is published in the map, and before it can expire
+    private volatile HashedTimerWheel.Timeout expiry;
+
+    private Hold(long id, int itemId, int quantity, long expiresAt) {
+      this.id = id;
+      this.itemId = itemId;
+      this.quantity = quantity;
+      this.expiresAt = expiresAt;
+    }
+
+    long id() {
+      return id;
+    }
+
+    int itemId() {
+      return itemId;
+    }
+
+    int quantity() {
+      return quantity;
+    }
+
+    long expiresAt() {
+      return expiresAt;
+    }
+  }
+
+  private final ConcurrentHashMap<Long, Hold> holds = new ConcurrentHashMap<>();
+
+  // Item id -> units held by its open holds, absent when none
+  private final ConcurrentHashMap<Integer, Integer> reserved = new ConcurrentHashMap<>();
+
+  private final AtomicLong nextId = new AtomicLong(1);
+  private final HashedTimerWheel wheel =
+      new HashedTimerWheel("reservation-expiry", TICK_MILLIS, WHEEL_SIZE);
+
+  /**
+   * @param itemId int, an item id
+   * @return int, the units of the item held by open holds
+   */
+  int reserved(int itemId) {
+    return reserved.getOrDefault(itemId, 0);
+  }
+
+  /**
+   * Opens a hold. Must be called while the item is locked in the store, after checking that the
+   * units are available.
+   *
+   * @param itemId int, the held item
+   * @param quantity int, the units held
+   * @param ttl long, the time before the hold expires, in milliseconds
+   * @return Hold, the open hold
+   */
+  Hold open(int itemId, int quantity, long ttl) {
+    Hold hold =
+        new Hold(nextId.getAndIncrement(), itemId, quantity, System.currentTimeMillis() + ttl);
+    reserved.merge(itemId, quantity, Integer::sum);
+    hold.expiry = wheel.schedule(() -> close(hold), ttl);
+    holds.put(hold.id, hold);
+    return hold;
+  }
+
+  /**
+   * @param id long, a hold id
+   * @return Hold, the open hold, or null if there is none
+   */
+  Hold get(long id) {
+    return holds.get(id);
+  }
+
+  /**
+   * Closes a hold, making its units available again, unless it was already closed. To commit a
+   * hold, call it while the item is locked and lower the quantity in the same update.
+   *
+   * @param hold Hold, the hold to close
+   * @return boolean, true if this call closed the hold
+   */
+  boolean close(Hold hold) {
+    if (!hold.open.compareAndSet(true, false)) {
+      return false;
+    }
+    holds.remove(hold.id);
+    reserved.computeIfPresent(
+        hold.itemId, (key, units) -> units == hold.quantity ? null : units - hold.quantity);
+    // Null when the expiry itself closes the hold before seeing the handle, which is then useless
+    HashedTimerWheel.Timeout expiry = hold.expiry;
+    if (expiry != null) {
+      expiry.cancel();
+    }
+    return true;
+  }
+
+  /**
+   * Forgets the reserved units of a removed item. Its holds can no longer be committed and are
+   * closed when released or expired.
+   *
+   * @param itemId int, the removed item
+   */
+  void itemRemoved(int itemId) {
+    reserved.remove(itemId);
+  }
+}
@@ -0,0 +1,4 @@
+package ch.heigvd.project3.inventory;
+
+/** Represents a signed change to apply to the quantity of an item. */
+public record StockAdjustment(Integer delta) {}
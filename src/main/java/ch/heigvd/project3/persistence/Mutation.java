@@ -0,0 +1,233 @@
+package ch.heigvd.project3.persistence;
+
+import ch.heigvd.project3.inventory.Item;
+import ch.heigvd.project3.users.Role;
+import ch.heigvd.project3.users.User;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A change applied to the inventory or users map. Puts carry the full resulting entry, so replaying
+ * mutations in order always rebuilds the latest state, whatever state the maps started from.
+ *
+ * <p>Strings are written as their UTF-8 length followed by their UTF-8 bytes, as in snapshots, so
+ * that no length of name or user field can make a mutation impossible to write.
+ */
+public sealed interface Mutation {
+  byte ITEM_PUT = 1;
+  byte ITEM_REMOVE = 2;
+  byte USER_PUT = 3;
+  byte USER_REMOVE = 4;
+  byte SESSION_REVOKE = 5;
+  byte BATCH = 6;
+
+  /** An item was created or replaced. */
+  record ItemPut(Item item) implements Mutation {}
+
+  /** An item was deleted. */
+  record ItemRemove(int id) implements Mutation {}
+
+  /** A user was created or replaced. */
+  record UserPut(User user) implements Mutation {}
+
+  /** A user was deleted. */
+  record UserRemove(int id) implements Mutation {}
+
+  /**
+   * A login session was closed. Sessions live in memory only, so this is streamed to the read
+   * replicas but never logged.
+   *
+   * @param sessionId String, the closed session
+   * @param until long, the time until which its access tokens must be refused, in epoch millis
+   */
+  record SessionRevoke(String sessionId, long until) implements Mutation {}
+
+  /**
+   * Item changes applied as a single unit. Written as one record, so that a crash never leaves part
+   * of them in the log.
+   *
+   * @param mutations List<Mutation>, the item puts and removes, in the order they are applied
+   */
+  record Batch(List<Mutation> mutations) implements Mutation {}
+
+  /**
+   * Writes the binary form of a mutation.
+   *
+   * @param mutation Mutation, the mutation to write
+   * @param out DataOutput, the destination
+   * @throws IOException if writing fails
+   */
+  static void write(Mutation mutation, DataOutput out) throws IOException {
+    switch (mutation) {
+      case ItemPut put -> {
+        out.writeByte(ITEM_PUT);
+        writeItem(put.item(), out);
+      }
+      case ItemRemove remove -> {
+        out.writeByte(ITEM_REMOVE);
+        out.writeInt(remove.id());
+      }
+      case UserPut put -> {
+        out.writeByte(USER_PUT);
+        writeUser(put.user(), out);
+      }
+      case UserRemove remove -> {
+        out.writeByte(USER_REMOVE);
+        out.writeInt(remove.id());
+      }
+      case SessionRevoke revoke -> {
+        out.writeByte(SESSION_REVOKE);
+        writeString(out, revoke.sessionId());
+        out.writeLong(revoke.until());
+      }
+      case Batch batch -> {
+        out.writeByte(BATCH);
+        out.writeInt(batch.mutations().size());
+        for (Mutation inner : batch.mutations()) {
+          write(inner, out);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads a mutation written by write.
+   *
+   * @param in DataInput, the source
+   * @return Mutation, the mutation read
+   * @throws IOException if reading fails or the record type is unknown
+   */
+  static Mutation read(DataInput in) throws IOException {
+    byte type = in.readByte();
+    return switch (type) {
+      case ITEM_PUT -> new ItemPut(readItem(in));
+      case ITEM_REMOVE -> new ItemRemove(in.readInt());
+      case USER_PUT -> new UserPut(readUser(in));
+      case USER_REMOVE -> new UserRemove(in.readInt());
+      case SESSION_REVOKE -> new SessionRevoke(readString(in), in.readLong());
+      case BATCH -> readBatch(in);
+      default -> throw new IOException("Unknown mutation type " + type);
+    };
+  }
+
+  /**
+   * Reads the body of a batch written by write.
+   *
+   * @param in DataInput, the source positioned after the record type
+   * @return Batch, the batch read
+   * @throws IOException if reading fails or the batch holds something else than item changes
+   */
+  private static Batch readBatch(DataInput in) throws IOException {
+    int size = in.readInt();
+    if (size < 0) {
+      throw new IOException("Invalid batch size " + size);
+    }
+    List<Mutation> mutations = new ArrayList<>(Math.min(size, 1024));
+    for (int i = 0; i < size; i++) {
+      Mutation inner = read(in);
+      if (!(inner instanceof ItemPut) && !(inner instanceof ItemRemove)) {
+        throw new IOException("Unexpected mutation in batch " + inner);
+      }
+      mutations.add(inner);
+    }
+    return new Batch(mutations);
+  }
+
+  /**
+   * Writes the binary form of an item.
+   *
+   * @param item Item, the item to write
+   * @param out DataOutput, the destination
+   * @throws IOException if writing fails
+   */
+  static void writeItem(Item item, DataOutput out) throws IOException {
+    out.writeInt(item.id());
+    writeString(out, item.name());
+    out.writeInt(item.num());
+    out.writeLong(item.version());
+  }
+
+  /**
+   * Reads an item written by writeItem, recomputing its ETag.
+   *
+   * @param in DataInput, the source
+   * @return Item, the item read
+   * @throws IOException if reading fails
+   */
+  static Item readItem(DataInput in) throws IOException {
+    int id = in.readInt();
+    String name = readString(in);
+    int num = in.readInt();
+    long version = in.readLong();
+    return Item.versioned(id, name, num, version);
+  }
+
+  /**
+   * Writes the binary form of a user, password hash included.
+   *
+   * @param user User, the user to write
+   * @param out DataOutput, the destination
+   * @throws IOException if writing fails
+   */
+  static void writeUser(User user, DataOutput out) throws IOException {
+    out.writeInt(user.id());
+    writeString(out, user.firstName());
+    writeString(out, user.lastName());
+    writeString(out, user.email());
+    writeString(out, user.passwordHash());
+    out.writeByte(user.role().ordinal());
+    out.writeLong(user.version());
+  }
+
+  /**
+   * Reads a user written by writeUser, recomputing its ETag.
+   *
+   * @param in DataInput, the source
+   * @return User, the user read
+   * @throws IOException if reading fails
+   */
+  static User readUser(DataInput in) throws IOException {
+    int id = in.readInt();
+    String firstName = readString(in);
+    String lastName = readString(in);
+    String email = readString(in);
+    String passwordHash = readString(in);
+    Role role = Role.values()[in.readByte()];
+    long version = in.readLong();
+    return User.versioned(id, firstName, lastName, email, passwordHash, role, version);
+  }
+
+  /**
+   * Writes a string as its UTF-8 length followed by its UTF-8 bytes.
+   *
+   * @param out DataOutput, the destination
+   * @param value String, the string to write
+   * @throws IOException if writing fails
+   */
+  private static void writeString(DataOutput out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by writeString.
+   *
+   * @param in DataInput, the source
+   * @return String, the string read
+   * @throws IOException if reading fails or the length is negative
+   */
+  private static String readString(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Invalid string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,111 @@
+package ch.heigvd.project3.persistence;
+
+import ch.heigvd.project3.inventory.InventoryStore;
+import ch.heigvd.project3.inventory.Item;
+import ch.heigvd.project3.users.User;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rebuilds the inventory store and the users map from recorded mutations at startup, before the
+ * controllers are created. It also remembers the highest ids seen, deleted entries included, so
+ * that ids are never handed out twice across restarts.
+ */
+public class Recovery {
+  private final InventoryStore inventory;
+  private final ConcurrentHashMap<Integer, User> users;
+
+  private long applied;
+  private int highestItemId;
+  private int highestUserId;
+
+  public Recovery(InventoryStore inventory, ConcurrentHashMap<Integer, User> users) {
+    this.inventory = inventory;
+    this.users = users;
+  }
+
+  /**
+   * Applies one recorded mutation to the maps.
+   *
+   * @param mutation Mutation, the mutation to apply
+   */
+  public void apply(Mutation mutation) {
+    applyChange(mutation);
+    applied++;
+  }
+
+  /**
+   * Applies a mutation, or each change of a batch, without counting it.
+   *
+   * @param mutation Mutation, the mutation to apply
+   */
+  private void applyChange(Mutation mutation) {
+    switch (mutation) {
+      case Mutation.ItemPut put -> restoreItem(put.item());
+      case Mutation.ItemRemove remove -> {
+        inventory.remove(remove.id());
+        highestItemId = Math.max(highestItemId, remove.id());
+      }
+      case Mutation.UserPut put -> restoreUser(put.user());
+      case Mutation.UserRemove remove -> {
+        users.remove(remove.id());
+        highestUserId = Math.max(highestUserId, remove.id());
+      }
+      case Mutation.SessionRevoke revoke -> {
+        // Never logged, sessions do not survive a restart
+      }
+      case Mutation.Batch batch -> batch.mutations().forEach(this::applyChange);
+    }
+  }
+
+  /**
+   * Puts an item read from a snapshot or from the log.
+   *
+   * @param item Item, the item to restore
+   */
+  public void restoreItem(Item item) {
+    inventory.put(item);
+    highestItemId = Math.max(highestItemId, item.id());
+  }
+
+  /**
+   * Puts a user read from a snapshot or from the log.
+   *
+   * @param user User, the user to restore
+   */
+  public void restoreUser(User user) {
+    users.put(user.id(), user);
+    highestUserId = Math.max(highestUserId, user.id());
+  }
+
+  /**
+   * Records the highest ids stored in a snapshot, which may belong to deleted entries.
+   *
+   * @param itemId int, the highest item id used when the snapshot was taken
+   * @param userId int, the highest user id used when the snapshot was taken
+   */
+  public void restoreHighestIds(int itemId, int userId) {
+    highestItemId = Math.max(highestItemId, itemId);
+    highestUserId = Math.max(highestUserId, userId);
+  }
+
+  /**
+   * @return long, the number of mutations applied
+   */
+  public long applied() {
+    return applied;
+  }
+
+  /**
+   * @return int, the highest item id seen
+   */
+  public int highestItemId() {
+    return highestItemId;
+  }
+
+  /**
+   * @return int, the highest user id seen
+   */
+  public int highestUserId() {
+    return highestUserId;
+  }
+}
@@ -0,0 +1,171 @@
+package ch.heigvd.project3.persistence;
+
+import ch.heigvd.project3.inventory.InventoryStore;
+import ch.heigvd.project3.inventory.Item;
+import ch.heigvd.project3.users.User;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ordered stream of the mutations applied to this instance, and of the login sessions it closed,
+ * read by read replicas. It is kept in a ring of the most recent mutations, each identified by a
+ * sequence number.
+ *
+ * <p>Like the inventory event bus, publishing reads the current state of the changed entry and
+ * assigns the next sequence number under one lock, so the last mutation of an entry always holds
+ * its latest state, even when two writes of the same entry publish in the opposite order. A replica
+ * that registers at a sequence number and then copies the maps therefore misses nothing: a write
+ * not visible to the copy is published after the registration. Writers never wait for replicas: a
+ * replica that falls further behind than the ring must copy the maps again.
+ */
+public class ReplicationLog {
+  // Number of mutations kept for replicas that are behind
+  private static final int CAPACITY = 65536;
+
+  /**
+   * A published mutation.
+   *
+   * @param sequence long, its position in the stream, starting at 1
+   * @param mutation Mutation, the latest state of the changed entry
+   */
+  public record Entry(long sequence, Mutation mutation) {}
+
+  private final InventoryStore inventory;
+  private final ConcurrentHashMap<Integer, User> users;
+  private final Entry[] ring = new Entry[CAPACITY];
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition published = lock.newCondition();
+  private long sequence;
+
+  /**
+   * @param inventory InventoryStore, the items the mutations are read from
+   * @param users ConcurrentHashMap<Integer, User>, the users the mutations are read from
+   */
+  public ReplicationLog(InventoryStore inventory, ConcurrentHashMap<Integer, User> users) {
+    this.inventory = inventory;
+    this.users = users;
+  }
+
+  /**
+   * Publishes the current state of an item. Must be called after the change is visible in the map.
+   *
+   * @param id int, the changed item
+   */
+  public void itemChanged(int id) {
+    itemsChanged(List.of(id));
+  }
+
+  /**
+   * Publishes the current state of several items. Must be called after the changes are visible in
+   * the map.
+   *
+   * @param ids Collection<Integer>, the changed items
+   */
+  public void itemsChanged(Collection<Integer> ids) {
+    lock.lock();
+    try {
+      for (int id : ids) {
+        Item item = inventory.get(id);
+        append(item == null ? new Mutation.ItemRemove(id) : new Mutation.ItemPut(item));
+      }
+      published.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Publishes the current state of a user. Must be called after the change is visible in the map.
+   *
+   * @param id int, the changed user
+   */
+  public void userChanged(int id) {
+    lock.lock();
+    try {
+      User user = users.get(id);
+      append(user == null ? new Mutation.UserRemove(id) : new Mutation.UserPut(user));
+      published.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Publishes the revocation of a login session, so that the replicas refuse its access tokens too.
+   *
+   * @param sessionId String, the closed session
+   * @param until long, the time until which its access tokens must be refused, in epoch millis
+   */
+  public void sessionRevoked(String sessionId, long until) {
+    lock.lock();
+    try {
+      append(new Mutation.SessionRevoke(sessionId, until));
+      published.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return long, the sequence number of the latest mutation, 0 if there is none
+   */
+  public long sequence() {
+    lock.lock();
+    try {
+      return sequence;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for the mutations following a sequence number.
+   *
+   * @param after long, the last sequence number the replica has received
+   * @param max int, the largest number of mutations returned
+   * @param timeout long, the longest time to wait in milliseconds
+   * @return List<Entry>, the next mutations in order, empty on timeout, or null if they are no
+   *     longer kept
+   * @throws InterruptedException if the replica thread is interrupted
+   */
+  public List<Entry> next(long after, int max, long timeout) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    lock.lock();
+    try {
+      while (sequence <= after) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return List.of();
+        }
+        published.awaitNanos(remaining);
+      }
+      if (after < sequence - CAPACITY || after < 0) {
+        return null;
+      }
+
+      int count = (int) Math.min(max, sequence - after);
+      List<Entry> entries = new ArrayList<>(count);
+      for (long s = after + 1; s <= after + count; s++) {
+        entries.add(ring[(int) (s % CAPACITY)]);
+      }
+      return entries;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Assigns the next sequence number to a mutation. Called with the lock held.
+   *
+   * @param mutation Mutation, the mutation to publish
+   */
+  private void append(Mutation mutation) {
+    sequence++;
+    ring[(int) (sequence % CAPACITY)] = new Entry(sequence, mutation);
+  }
+}
@@ -0,0 +1,275 @@
+package ch.heigvd.project3.persistence;
+
+import ch.heigvd.project3.inventory.InventoryStore;
+import ch.heigvd.project3.inventory.Item;
+import ch.heigvd.project3.users.Role;
+import ch.heigvd.project3.users.User;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically writes the inventory and users maps to a compact binary snapshot, so that startup
+ * only has to load the snapshot and replay the end of the write-ahead log.
+ *
+ * <p>Writers are never stopped: the log is rolled first, then the maps are iterated while they keep
+ * changing. A change racing with the iteration is in the segment sealed by that roll, which is kept
+ * and replayed after the snapshot; older segments are deleted once the snapshot is on disk.
+ *
+ * <p>Layout: magic, highest item id, highest user id, then tagged entries ending with END, then the
+ * CRC32 of everything before it. Strings are stored as a length followed by UTF-8 bytes.
+ */
+public class Snapshotter {
+  private static final Logger LOG = LoggerFactory.getLogger(Snapshotter.class);
+
+  // "WHSNAP01"
+  private static final long MAGIC = 0x5748534e41503031L;
+  private static final byte END = 0;
+  private static final byte ITEM = 1;
+  private static final byte USER = 2;
+
+  private final Path path;
+  private final WriteAheadLog wal;
+  private final InventoryStore inventory;
+  private final ConcurrentHashMap<Integer, User> users;
+  private final IntSupplier highestItemId;
+  private final IntSupplier highestUserId;
+
+  private long snapshotSequence = -1;
+
+  public Snapshotter(
+      Path path,
+      WriteAheadLog wal,
+      InventoryStore inventory,
+      ConcurrentHashMap<Integer, User> users,
+      IntSupplier highestItemId,
+      IntSupplier highestUserId) {
+    this.path = path;
+    this.wal = wal;
+    this.inventory = inventory;
+    this.users = users;
+    this.highestItemId = highestItemId;
+    this.highestUserId = highestUserId;
+  }
+
+  /**
+   * Starts taking a snapshot at a fixed interval on a background thread. Intervals without any
+   * change are skipped.
+   *
+   * @param interval Duration, the time between two snapshots
+   */
+  public void start(Duration interval) {
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "snapshotter");
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    scheduler.scheduleWithFixedDelay(
+        () -> {
+          try {
+            if (wal.lastSequence() != snapshotSequence) {
+              snapshot();
+            }
+          } catch (IOException | RuntimeException e) {
+            LOG.error("Snapshot failed, the write-ahead log keeps growing", e);
+          }
+        },
+        interval.toMillis(),
+        interval.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Takes a snapshot now and deletes the log segments it makes obsolete.
+   *
+   * @throws IOException if the snapshot cannot be written
+   */
+  public void snapshot() throws IOException {
+    long start = System.nanoTime();
+    long sequence = wal.lastSequence();
+
+    int sealed;
+    try {
+      sealed = wal.roll().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while rolling the write-ahead log", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Could not roll the write-ahead log", e.getCause());
+    }
+
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    int items = 0;
+    int usersWritten = 0;
+
+    try (FileChannel channel =
+        FileChannel.open(
+            temporary,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      CRC32 checksum = new CRC32();
+      DataOutputStream out =
+          new DataOutputStream(
+              new BufferedOutputStream(
+                  new CheckedOutputStream(Channels.newOutputStream(channel), checksum), 1 << 16));
+
+      out.writeLong(MAGIC);
+      out.writeInt(highestItemId.getAsInt());
+      out.writeInt(highestUserId.getAsInt());
+
+      for (Item item : inventory) {
+        out.writeByte(ITEM);
+        out.writeInt(item.id());
+        writeString(out, item.name());
+        out.writeInt(item.num());
+        out.writeLong(item.version());
+        items++;
+      }
+
+      for (User user : users.values()) {
+        out.writeByte(USER);
+        out.writeInt(user.id());
+        writeString(out, user.firstName());
+        writeString(out, user.lastName());
+        writeString(out, user.email());
+        writeString(out, user.passwordHash());
+        out.writeByte(user.role().ordinal());
+        out.writeLong(user.version());
+        usersWritten++;
+      }
+
+      out.writeByte(END);
+      out.flush();
+      out.writeLong(checksum.getValue());
+      out.flush();
+      channel.force(true);
+    }
+
+    Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+
+    // The segment just sealed may hold changes the iteration missed, so only older ones go
+    wal.deleteSegmentsUpTo(sealed - 1);
+    snapshotSequence = sequence;
+
+    LOG.info(
+        "Snapshot of {} items and {} users written in {} ms",
+        items,
+        usersWritten,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  /**
+   * Loads a snapshot through a memory-mapped buffer.
+   *
+   * @param path Path, the snapshot file
+   * @param recovery Recovery, receives the entries of the snapshot
+   * @return boolean, false if there is no snapshot yet
+   * @throws IOException if the snapshot cannot be read or is corrupted
+   */
+  public static boolean load(Path path, Recovery recovery) throws IOException {
+    if (!Files.exists(path)) {
+      return false;
+    }
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < 25 || size > Integer.MAX_VALUE) {
+        throw new IOException("Invalid snapshot size " + size);
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+      int bodyLength = (int) size - 8;
+      CRC32 checksum = new CRC32();
+      checksum.update(buffer.duplicate().limit(bodyLength));
+      if (checksum.getValue() != buffer.getLong(bodyLength)) {
+        throw new IOException("Corrupted snapshot " + path);
+      }
+
+      if (buffer.getLong() != MAGIC) {
+        throw new IOException("Not a snapshot " + path);
+      }
+      recovery.restoreHighestIds(buffer.getInt(), buffer.getInt());
+
+      Role[] roles = Role.values();
+      byte[] scratch = new byte[256];
+      while (true) {
+        byte tag = buffer.get();
+        if (tag == END) {
+          break;
+        }
+
+        if (tag == ITEM) {
+          int id = buffer.getInt();
+          String name = readString(buffer, scratch);
+          int num = buffer.getInt();
+          long version = buffer.getLong();
+          recovery.restoreItem(Item.versioned(id, name, num, version));
+        } else if (tag == USER) {
+          int id = buffer.getInt();
+          String firstName = readString(buffer, scratch);
+          String lastName = readString(buffer, scratch);
+          String email = readString(buffer, scratch);
+          String passwordHash = readString(buffer, scratch);
+          Role role = roles[buffer.get()];
+          long version = buffer.getLong();
+          recovery.restoreUser(
+              User.versioned(id, firstName, lastName, email, passwordHash, role, version));
+        } else {
+          throw new IOException("Unknown snapshot entry " + tag);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes a string as its UTF-8 length followed by its UTF-8 bytes.
+   *
+   * @param out DataOutputStream, the destination
+   * @param value String, the string to write
+   * @throws IOException if writing fails
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by writeString.
+   *
+   * @param buffer ByteBuffer, the source
+   * @param scratch byte[], reusable buffer for short strings
+   * @return String, the string read
+   */
+  private static String readString(ByteBuffer buffer, byte[] scratch) {
+    int length = buffer.getInt();
+    byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+    buffer.get(bytes, 0, length);
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+}
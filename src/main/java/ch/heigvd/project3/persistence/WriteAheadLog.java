@@ -0,0 +1,374 @@
+package ch.heigvd.project3.persistence;
+
+import io.javalin.http.InternalServerErrorResponse;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of every mutation of the inventory and users maps. Request threads only enqueue
+ * records; a dedicated writer thread writes whatever has accumulated and makes it durable with a
+ * single fsync (group commit), then wakes up every request waiting on that group.
+ *
+ * <p>Each record is framed as [length][crc32][payload] so that a record torn by a crash is detected
+ * and dropped when the log is replayed.
+ *
+ * <p>The log can be rolled: the current file is sealed as a numbered segment ("path.1", "path.2",
+ * ...) and a new file is started. Segments are replayed in order before the current file, and can
+ * be deleted once a snapshot covers them.
+ */
+public class WriteAheadLog {
+  private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+
+  // Largest number of records written between two fsyncs
+  private static final int MAX_GROUP_SIZE = 4096;
+
+  private record Pending(long sequence, Mutation mutation) {}
+
+  private final Path path;
+  private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final Object durableMonitor = new Object();
+  private final Thread writer;
+
+  // Only used by the writer thread once started
+  private FileChannel channel;
+  private int generation;
+
+  private long lastSequence;
+  private volatile long durableSequence;
+  private volatile boolean failed;
+  private volatile boolean running = true;
+  private volatile CompletableFuture<Integer> pendingRoll;
+
+  private WriteAheadLog(Path path, FileChannel channel, int generation) {
+    this.path = path;
+    this.channel = channel;
+    this.generation = generation;
+    if (path == null) {
+      writer = null;
+      return;
+    }
+    writer = new Thread(this::writeLoop, "wal-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Returns a log that records nothing, used when persistence is not configured.
+   *
+   * @return WriteAheadLog, a disabled log
+   */
+  public static WriteAheadLog disabled() {
+    return new WriteAheadLog(null, null, 0);
+  }
+
+  /**
+   * Opens the log at the given path, replays every valid record of its sealed segments and of the
+   * current file, drops a torn tail if any, and starts the writer thread.
+   *
+   * @param path Path, the log file, created if missing
+   * @param replay Consumer<Mutation>, receives the recorded mutations in order
+   * @return WriteAheadLog, the log ready to be appended to
+   * @throws IOException if the files cannot be read or written
+   */
+  public static WriteAheadLog open(Path path, Consumer<Mutation> replay) throws IOException {
+    List<Integer> generations = segmentGenerations(path);
+    for (int sealed : generations) {
+      try (FileChannel segment = FileChannel.open(segmentPath(path, sealed))) {
+        replay(segment, replay);
+      }
+    }
+
+    FileChannel channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    long validLength = replay(channel, replay);
+    channel.truncate(validLength);
+    channel.position(validLength);
+
+    int nextGeneration = generations.isEmpty() ? 1 : generations.get(generations.size() - 1) + 1;
+    return new WriteAheadLog(path, channel, nextGeneration);
+  }
+
+  /**
+   * Reads every valid record from the start of the channel.
+   *
+   * @param channel FileChannel, the log file
+   * @param replay Consumer<Mutation>, receives the recorded mutations in order
+   * @return long, the length of the valid prefix of the file
+   * @throws IOException if the file cannot be read
+   */
+  private static long replay(FileChannel channel, Consumer<Mutation> replay) throws IOException {
+    channel.position(0);
+    InputStream stream = Channels.newInputStream(channel);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+
+    long size = channel.size();
+    long validLength = 0;
+    while (true) {
+      try {
+        int length = in.readInt();
+        int crc = in.readInt();
+        if (length <= 0 || validLength + 8 + length > size) {
+          break;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        if ((int) checksum.getValue() != crc) {
+          break;
+        }
+
+        replay.accept(Mutation.read(new DataInputStream(new ByteArrayInputStream(payload))));
+        validLength += 8 + length;
+      } catch (EOFException e) {
+        break;
+      }
+    }
+    return validLength;
+  }
+
+  /**
+   * Lists the generations of the sealed segments of a log, in ascending order.
+   *
+   * @param path Path, the log file
+   * @return List<Integer>, the generations found next to the log file
+   * @throws IOException if the directory cannot be listed
+   */
+  private static List<Integer> segmentGenerations(Path path) throws IOException {
+    Path directory = path.toAbsolutePath().getParent();
+    String prefix = path.getFileName() + ".";
+    List<Integer> generations = new ArrayList<>();
+
+    try (Stream<Path> files = Files.list(directory)) {
+      files
+          .map(file -> file.getFileName().toString())
+          .filter(name -> name.startsWith(prefix))
+          .map(name -> name.substring(prefix.length()))
+          .filter(suffix -> !suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit))
+          .forEach(suffix -> generations.add(Integer.parseInt(suffix)));
+    }
+    generations.sort(null);
+    return generations;
+  }
+
+  /**
+   * @param path Path, the log file
+   * @param generation int, the generation of a sealed segment
+   * @return Path, the file of that segment
+   */
+  private static Path segmentPath(Path path, int generation) {
+    return path.resolveSibling(path.getFileName() + "." + generation);
+  }
+
+  /**
+   * Enqueues a mutation. Called while the changed map entry is still locked, so that records of the
+   * same entry reach the log in the order they were applied.
+   *
+   * <p>Once the log failed, mutations are refused instead of piling up in a queue that is no longer
+   * drained.
+   *
+   * @param mutation Mutation, the mutation to record
+   * @throws InternalServerErrorResponse if the log can no longer be written
+   */
+  public void append(Mutation mutation) {
+    if (path == null) {
+      return;
+    }
+    if (failed) {
+      throw new InternalServerErrorResponse("Write-ahead log unavailable.");
+    }
+    synchronized (queue) {
+      queue.add(new Pending(++lastSequence, mutation));
+    }
+  }
+
+  /**
+   * @return long, the sequence number of the last mutation appended, 0 if none
+   */
+  public long lastSequence() {
+    synchronized (queue) {
+      return lastSequence;
+    }
+  }
+
+  /**
+   * Blocks until every mutation appended so far, by any thread, is durable on disk. Concurrent
+   * callers are released together by the same fsync.
+   *
+   * @throws InternalServerErrorResponse if the log can no longer be written
+   */
+  public void awaitDurable() {
+    if (path == null) {
+      return;
+    }
+    long target = lastSequence();
+
+    synchronized (durableMonitor) {
+      while (durableSequence < target && !failed) {
+        try {
+          durableMonitor.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InternalServerErrorResponse("Interrupted while persisting the change.");
+        }
+      }
+    }
+    if (failed) {
+      throw new InternalServerErrorResponse("Write-ahead log unavailable.");
+    }
+  }
+
+  /**
+   * Asks the writer thread to seal the current file as a segment and start a new one. Mutations
+   * appended once the returned future is complete are written to the new file.
+   *
+   * @return CompletableFuture<Integer>, completed with the generation of the sealed segment
+   */
+  public synchronized CompletableFuture<Integer> roll() {
+    if (pendingRoll == null) {
+      pendingRoll = new CompletableFuture<>();
+    }
+    return pendingRoll;
+  }
+
+  /**
+   * Deletes the sealed segments up to and including the given generation.
+   *
+   * @param generation int, the newest generation to delete
+   * @throws IOException if a segment cannot be deleted
+   */
+  public void deleteSegmentsUpTo(int generation) throws IOException {
+    for (int sealed : segmentGenerations(path)) {
+      if (sealed <= generation) {
+        Files.deleteIfExists(segmentPath(path, sealed));
+      }
+    }
+  }
+
+  /** Writes the remaining records and stops the writer thread. */
+  public void close() {
+    if (path == null) {
+      return;
+    }
+    running = false;
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+      channel.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      // Nothing left to do at shutdown
+    }
+  }
+
+  /** Body of the writer thread: one write and one fsync per group of queued records. */
+  private void writeLoop() {
+    List<Pending> group = new ArrayList<>();
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    ByteArrayOutputStream frames = new ByteArrayOutputStream(1 << 16);
+
+    while (running || !queue.isEmpty()) {
+      try {
+        if (pendingRoll != null) {
+          rollSegment();
+        }
+
+        Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        group.add(first);
+        queue.drainTo(group, MAX_GROUP_SIZE - 1);
+
+        frames.reset();
+        DataOutputStream framesOut = new DataOutputStream(frames);
+        for (Pending pending : group) {
+          payload.reset();
+          Mutation.write(pending.mutation(), new DataOutputStream(payload));
+          byte[] bytes = payload.toByteArray();
+
+          CRC32 checksum = new CRC32();
+          checksum.update(bytes);
+          framesOut.writeInt(bytes.length);
+          framesOut.writeInt((int) checksum.getValue());
+          framesOut.write(bytes);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(frames.toByteArray());
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(false);
+
+        synchronized (durableMonitor) {
+          durableSequence = group.get(group.size() - 1).sequence();
+          durableMonitor.notifyAll();
+        }
+        group.clear();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (IOException e) {
+        LOG.error("Write-ahead log failure, changes are no longer persisted", e);
+        synchronized (durableMonitor) {
+          failed = true;
+          durableMonitor.notifyAll();
+        }
+        CompletableFuture<Integer> roll = pendingRoll;
+        if (roll != null) {
+          roll.completeExceptionally(e);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Seals the current file under the next generation and opens a new empty file. Runs on the writer
+   * thread between two groups, so no record is split across files.
+   *
+   * @throws IOException if the file cannot be renamed or created
+   */
+  private void rollSegment() throws IOException {
+    CompletableFuture<Integer> roll;
+    synchronized (this) {
+      roll = pendingRoll;
+      pendingRoll = null;
+    }
+
+    channel.close();
+    int sealed = generation++;
+    Files.move(path, segmentPath(path, sealed), StandardCopyOption.ATOMIC_MOVE);
+    channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    roll.complete(sealed);
+  }
+}
@@ -0,0 +1,283 @@
+package ch.heigvd.project3.replication;
+
+import ch.heigvd.project3.auth.AuthController;
+import ch.heigvd.project3.inventory.InventoryController;
+import ch.heigvd.project3.inventory.InventoryStore;
+import ch.heigvd.project3.inventory.Item;
+import ch.heigvd.project3.persistence.Mutation;
+import ch.heigvd.project3.users.User;
+import ch.heigvd.project3.users.UsersController;
+import ch.heigvd.project3.util.ETagUtil;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a read replica in step with its primary instance: it reads the replication stream of the
+ * primary and applies every mutation through the controllers, so that their indexes, revisions and
+ * change streams follow, and the sessions closed on the primary are refused here too. On any
+ * failure it reconnects and copies the maps again, dropping the entries the primary no longer has.
+ *
+ * <p>The lag is the time since the replica last applied every mutation the primary had published.
+ * The primary sends a heartbeat when it has nothing to send, so an idle replica in step with its
+ * primary reports a lag below one heartbeat interval.
+ */
+public class ReplicaFollower {
+  private static final Logger LOG = LoggerFactory.getLogger(ReplicaFollower.class);
+
+  // Pause between two connection attempts
+  private static final long RETRY_MILLIS = 1000;
+
+  // A primary silent for this long is considered gone, even if the connection is still open
+  private static final long SILENCE_MILLIS = 5 * ReplicationController.HEARTBEAT_MILLIS;
+
+  private final URI streamUri;
+  private final String token;
+  private final InventoryStore inventory;
+  private final ConcurrentHashMap<Integer, User> users;
+  private final InventoryController inventoryController;
+  private final UsersController usersController;
+  private final AuthController authController;
+  private final HttpClient client =
+      HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+  // Written by the follower thread only
+  private volatile boolean connected;
+  private volatile long applied;
+  private volatile long primarySequence;
+  private volatile long caughtUpAt;
+  private volatile long lastFrameAt;
+  private volatile InputStream current;
+
+  /**
+   * @param primaryUrl String, the base URL of the primary, such as http://primary:8080
+   * @param token String, the replication token of the primary
+   * @param inventory InventoryStore, the local items
+   * @param users ConcurrentHashMap<Integer, User>, the local users
+   * @param inventoryController InventoryController, applies item mutations
+   * @param usersController UsersController, applies user mutations
+   * @param authController AuthController, applies session revocations
+   */
+  public ReplicaFollower(
+      String primaryUrl,
+      String token,
+      InventoryStore inventory,
+      ConcurrentHashMap<Integer, User> users,
+      InventoryController inventoryController,
+      UsersController usersController,
+      AuthController authController) {
+    String base = primaryUrl.endsWith("/") ? primaryUrl : primaryUrl + "/";
+    this.streamUri = URI.create(base).resolve("replication/stream");
+    this.token = token;
+    this.inventory = inventory;
+    this.users = users;
+    this.inventoryController = inventoryController;
+    this.usersController = usersController;
+    this.authController = authController;
+  }
+
+  /** Starts following the primary on a daemon thread. */
+  public void start() {
+    Thread.ofPlatform().daemon().name("replica-follower").start(this::run);
+
+    ScheduledExecutorService watchdog =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> Thread.ofPlatform().daemon().name("replica-watchdog").unstarted(r));
+    watchdog.scheduleWithFixedDelay(
+        this::closeIfSilent, SILENCE_MILLIS, SILENCE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the replication status of this replica. With the maxLagMillis query parameter, answers
+   * 503 when the replica is disconnected or lags more, so that it can serve as a health check.
+   *
+   * @param ctx the Javalin context containing the request and response
+   */
+  public void status(Context ctx) {
+    long now = System.nanoTime();
+    long lagMillis = caughtUpAt == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(now - caughtUpAt);
+    long sequence = applied;
+    long head = Math.max(primarySequence, sequence);
+    boolean up = connected;
+
+    Long maxLag = ctx.queryParamAsClass("maxLagMillis", Long.class).allowNullable().get();
+    boolean healthy = up && lagMillis >= 0 && (maxLag == null || lagMillis <= maxLag);
+    ctx.status(healthy || maxLag == null ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE);
+    ctx.json(new ReplicationStatus("replica", up, sequence, head, head - sequence, lagMillis, 0));
+  }
+
+  /** Follows the primary, reconnecting after every failure. */
+  private void run() {
+    while (true) {
+      try {
+        follow();
+      } catch (IOException e) {
+        LOG.warn("Replication from {} interrupted: {}", streamUri, e.toString());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } finally {
+        connected = false;
+        current = null;
+      }
+
+      try {
+        Thread.sleep(RETRY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Copies the maps of the primary, then applies its mutations until the stream ends.
+   *
+   * @throws IOException if the primary cannot be reached or the stream breaks
+   * @throws InterruptedException if the follower thread is interrupted
+   */
+  private void follow() throws IOException, InterruptedException {
+    HttpRequest request =
+        HttpRequest.newBuilder(streamUri).header("Authorization", "Bearer " + token).GET().build();
+    HttpResponse<InputStream> response =
+        client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+    if (response.statusCode() != HttpStatus.OK.getCode()) {
+      response.body().close();
+      throw new IOException("Primary answered " + response.statusCode());
+    }
+
+    // The watchdog closes the raw body, which is safe to close while it is being read
+    lastFrameAt = System.nanoTime();
+    current = response.body();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(response.body(), 1 << 16))) {
+      copy(in);
+      connected = true;
+      LOG.info(
+          "Replicating from {} at sequence {}: {} items, {} users",
+          streamUri,
+          applied,
+          inventory.size(),
+          users.size());
+
+      while (true) {
+        byte kind = in.readByte();
+        lastFrameAt = System.nanoTime();
+        if (kind == ReplicationController.MUTATION) {
+          long sequence = in.readLong();
+          long head = in.readLong();
+          apply(Mutation.read(in));
+          applied = sequence;
+          primarySequence = head;
+          if (sequence >= head) {
+            caughtUpAt = System.nanoTime();
+          }
+        } else if (kind == ReplicationController.HEARTBEAT) {
+          primarySequence = in.readLong();
+          if (applied >= primarySequence) {
+            caughtUpAt = System.nanoTime();
+          }
+        } else {
+          throw new IOException("Unexpected replication frame " + kind);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adopts the ETag epoch of the primary, applies the copy of the maps sent at the start of the
+   * stream, then removes the local entries that are not part of it. Every copied entry is rebuilt
+   * with the epoch of the primary, so its ETag is the one the primary serves.
+   *
+   * @param in DataInputStream, the stream positioned at its start
+   * @throws IOException if the stream breaks
+   */
+  private void copy(DataInputStream in) throws IOException {
+    ETagUtil.adoptEpoch(in.readUTF());
+    Set<Integer> itemIds = new HashSet<>();
+    Set<Integer> userIds = new HashSet<>();
+    while (true) {
+      byte kind = in.readByte();
+      lastFrameAt = System.nanoTime();
+      if (kind == ReplicationController.SNAPSHOT_END) {
+        break;
+      }
+      if (kind != ReplicationController.SNAPSHOT_ENTRY) {
+        throw new IOException("Unexpected replication frame " + kind);
+      }
+      Mutation mutation = Mutation.read(in);
+      switch (mutation) {
+        case Mutation.ItemPut put -> itemIds.add(put.item().id());
+        case Mutation.UserPut put -> userIds.add(put.user().id());
+        case Mutation.SessionRevoke revoke -> {
+          // Revocations are only added, and expire on their own
+        }
+        default -> throw new IOException("Unexpected mutation in copy " + mutation);
+      }
+      apply(mutation);
+    }
+    long sequence = in.readLong();
+
+    List<Integer> staleItems = new ArrayList<>();
+    for (Item item : inventory) {
+      if (!itemIds.contains(item.id())) {
+        staleItems.add(item.id());
+      }
+    }
+    staleItems.forEach(inventoryController::replicateRemoval);
+    List<Integer> staleUsers = new ArrayList<>(users.keySet());
+    staleUsers.removeAll(userIds);
+    staleUsers.forEach(usersController::replicateRemoval);
+
+    applied = sequence;
+    primarySequence = sequence;
+  }
+
+  /**
+   * @param mutation Mutation, a mutation received from the primary
+   */
+  private void apply(Mutation mutation) {
+    switch (mutation) {
+      case Mutation.ItemPut put -> inventoryController.replicate(put.item());
+      case Mutation.ItemRemove remove -> inventoryController.replicateRemoval(remove.id());
+      case Mutation.UserPut put -> usersController.replicate(put.user());
+      case Mutation.UserRemove remove -> usersController.replicateRemoval(remove.id());
+      case Mutation.SessionRevoke revoke ->
+          authController.replicateRevocation(revoke.sessionId(), revoke.until());
+      case Mutation.Batch batch -> batch.mutations().forEach(this::apply);
+    }
+  }
+
+  /** Breaks a connection on which the primary has been silent for too long. */
+  private void closeIfSilent() {
+    InputStream in = current;
+    long silence = System.nanoTime() - lastFrameAt;
+    if (in == null || silence < TimeUnit.MILLISECONDS.toNanos(SILENCE_MILLIS)) {
+      return;
+    }
+    LOG.warn("No data from {} for {} ms, reconnecting", streamUri, SILENCE_MILLIS);
+    try {
+      in.close();
+    } catch (IOException e) {
+      LOG.debug("Closing the replication stream failed", e);
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package ch.heigvd.project3.replication;
+
+import ch.heigvd.project3.auth.AuthController;
+import ch.heigvd.project3.inventory.InventoryStore;
+import ch.heigvd.project3.inventory.Item;
+import ch.heigvd.project3.persistence.Mutation;
+import ch.heigvd.project3.persistence.ReplicationLog;
+import ch.heigvd.project3.users.User;
+import ch.heigvd.project3.util.ETagUtil;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.UnauthorizedResponse;
+import io.javalin.openapi.HttpMethod;
+import io.javalin.openapi.OpenApi;
+import io.javalin.openapi.OpenApiContent;
+import io.javalin.openapi.OpenApiResponse;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the replication stream of a primary instance to its read replicas, and the replication
+ * status of the primary.
+ *
+ * <p>The stream starts with the ETag epoch of the primary, which the replica adopts so that its
+ * ETags are accepted by the primary, followed by a sequence of frames, each starting with its kind:
+ *
+ * <ul>
+ *   <li>SNAPSHOT_ENTRY, followed by a mutation: an item or user copied from the maps, or a session
+ *       revocation whose access tokens are still refused;
+ *   <li>SNAPSHOT_END, followed by the sequence number the copy started at;
+ *   <li>MUTATION, followed by its sequence number, the latest sequence number of the primary and
+ *       the mutation;
+ *   <li>HEARTBEAT, followed by the latest sequence number of the primary, sent when nothing was
+ *       published for HEARTBEAT_MILLIS.
+ * </ul>
+ *
+ * Mutations use the encoding of the write-ahead log.
+ */
+public class ReplicationController {
+  private static final Logger LOG = LoggerFactory.getLogger(ReplicationController.class);
+
+  static final byte SNAPSHOT_ENTRY = 1;
+  static final byte SNAPSHOT_END = 2;
+  static final byte MUTATION = 3;
+  static final byte HEARTBEAT = 4;
+
+  // Longest silence on the stream, also the resolution of the replication lag
+  static final long HEARTBEAT_MILLIS = 1000;
+
+  // Largest number of mutations written between two flushes
+  private static final int BATCH_SIZE = 1024;
+
+  private final ReplicationLog log;
+  private final InventoryStore inventory;
+  private final ConcurrentHashMap<Integer, User> users;
+  private final AuthController auth;
+
+  // Shared secret of the primary and its replicas, null to refuse every replica
+  private final byte[] token;
+
+  private final AtomicInteger replicas = new AtomicInteger();
+
+  /**
+   * @param log ReplicationLog, the mutations published by the controllers
+   * @param inventory InventoryStore, the items copied to new replicas
+   * @param users ConcurrentHashMap<Integer, User>, the users copied to new replicas
+   * @param auth AuthController, the revoked sessions copied to new replicas
+   * @param token String, the token replicas must present, or null to disable replication
+   */
+  public ReplicationController(
+      ReplicationLog log,
+      InventoryStore inventory,
+      ConcurrentHashMap<Integer, User> users,
+      AuthController auth,
+      String token) {
+    this.log = log;
+    this.inventory = inventory;
+    this.users = users;
+    this.auth = auth;
+    this.token =
+        token == null || token.isBlank() ? null : token.trim().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Streams the current items and users, then every mutation published afterwards, until the
+   * replica disconnects or falls too far behind. A replica occupies one request thread for as long
+   * as it is connected.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @throws UnauthorizedResponse if the replication token is missing or wrong
+   */
+  @OpenApi(
+      path = "/replication/stream",
+      methods = {HttpMethod.GET},
+      summary = "Stream mutations to a read replica",
+      description =
+          "Binary stream of the current items and users followed by every later mutation. Requires"
+              + " the replication token as bearer token.",
+      tags = {"Replication"},
+      responses = {
+        @OpenApiResponse(
+            status = "200",
+            description = "Mutation stream",
+            content = {@OpenApiContent(type = "application/octet-stream")}),
+        @OpenApiResponse(status = "401", description = "Missing or wrong replication token")
+      })
+  public void stream(Context ctx) {
+    String authorization = ctx.header(Header.AUTHORIZATION);
+    String prefix = "Bearer ";
+    if (token == null
+        || authorization == null
+        || !authorization.startsWith(prefix)
+        || !MessageDigest.isEqual(
+            token, authorization.substring(prefix.length()).getBytes(StandardCharsets.UTF_8))) {
+      throw new UnauthorizedResponse("Invalid replication token.");
+    }
+
+    // Registered before the copy, so that a write missed by the copy is streamed afterwards
+    long position = log.sequence();
+    ctx.contentType("application/octet-stream");
+    ctx.status(HttpStatus.OK);
+    int connected = replicas.incrementAndGet();
+    LOG.info("Replica {} connected at sequence {} ({} connected)", ctx.ip(), position, connected);
+
+    // Written to the servlet response directly, which sends every flush to the replica
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(ctx.res().getOutputStream(), 1 << 16))) {
+      out.writeUTF(ETagUtil.epoch());
+      for (Item item : inventory) {
+        out.writeByte(SNAPSHOT_ENTRY);
+        Mutation.write(new Mutation.ItemPut(item), out);
+      }
+      for (User user : users.values()) {
+        out.writeByte(SNAPSHOT_ENTRY);
+        Mutation.write(new Mutation.UserPut(user), out);
+      }
+      for (Map.Entry<String, Long> revoked : auth.revokedSessions().entrySet()) {
+        out.writeByte(SNAPSHOT_ENTRY);
+        Mutation.write(new Mutation.SessionRevoke(revoked.getKey(), revoked.getValue()), out);
+      }
+      out.writeByte(SNAPSHOT_END);
+      out.writeLong(position);
+      out.flush();
+
+      while (true) {
+        List<ReplicationLog.Entry> entries = log.next(position, BATCH_SIZE, HEARTBEAT_MILLIS);
+        if (entries == null) {
+          // The replica reconnects and copies the maps again
+          LOG.warn("Replica {} fell behind at sequence {}, disconnecting", ctx.ip(), position);
+          return;
+        }
+        if (entries.isEmpty()) {
+          out.writeByte(HEARTBEAT);
+          out.writeLong(position);
+        } else {
+          long head = log.sequence();
+          for (ReplicationLog.Entry entry : entries) {
+            out.writeByte(MUTATION);
+            out.writeLong(entry.sequence());
+            out.writeLong(head);
+            Mutation.write(entry.mutation(), out);
+          }
+          position = entries.get(entries.size() - 1).sequence();
+        }
+        out.flush();
+      }
+    } catch (IOException e) {
+      LOG.info("Replica {} disconnected at sequence {}", ctx.ip(), position);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      replicas.decrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the replication status of the primary: its latest sequence number and the number of
+   * connected replicas.
+   *
+   * @param ctx the Javalin context containing the request and response
+   */
+  @OpenApi(
+      path = "/replication/status",
+      methods = {HttpMethod.GET},
+      summary = "Get the replication status",
+      description =
+          "Returns the role of this instance, its sequence number and, on a replica, its lag behind"
+              + " the primary.",
+      tags = {"Replication"},
+      responses = {
+        @OpenApiResponse(
+            status = "200",
+            description = "Status retrieved successfully",
+            content = {@OpenApiContent(from = ReplicationStatus.class)}),
+        @OpenApiResponse(
+            status = "503",
+            description = "Replica disconnected or lagging more than maxLagMillis")
+      })
+  public void status(Context ctx) {
+    long sequence = log.sequence();
+    ctx.status(HttpStatus.OK);
+    ctx.json(new ReplicationStatus("primary", true, sequence, sequence, 0, 0, replicas.get()));
+  }
+}
@@ -0,0 +1,10 @@
+package ch.heigvd.project3.replication;
+
+public record ReplicationStatus(
+    String role,
+    boolean connected,
+    long sequence,
+    long primarySequence,
+    long lagMutations,
+    long lagMillis,
+    int replicas) {}
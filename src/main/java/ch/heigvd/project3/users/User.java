@@ -1,12 +1,48 @@
 package ch.heigvd.project3.users;
 
+import ch.heigvd.project3.util.ETagUtil;
 import com.fasterxml.jackson.annotation.JsonAlias;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
-/** Represents a user with personal details, email, password hash, and role. */
+/**
+ * Represents a user with personal details, email, password hash, and role. Stored users also carry
+ * a version and the ETag derived from it, both computed once when the user is written.
+ */
 public record User(
     Integer id,
     String firstName,
     String lastName,
     String email,
     @JsonAlias("password") String passwordHash,
-    Role role) {}
+    Role role,
+    @JsonIgnore long version,
+    @JsonIgnore String etag) {
+  public User(
+      Integer id, String firstName, String lastName, String email, String passwordHash, Role role) {
+    this(id, firstName, lastName, email, passwordHash, role, 0, null);
+  }
+
+  /**
+   * Creates the stored form of a user, with its strong ETag precomputed.
+   *
+   * @param id Integer, the user ID
+   * @param firstName String, the first name
+   * @param lastName String, the last name
+   * @param email String, the email
+   * @param passwordHash String, the Argon2 password hash
+   * @param role Role, the role
+   * @param version long, the version of the user, incremented on every write
+   * @return User, the user ready to be stored
+   */
+  public static User versioned(
+      Integer id,
+      String firstName,
+      String lastName,
+      String email,
+      String passwordHash,
+      Role role,
+      long version) {
+    return new User(
+        id, firstName, lastName, email, passwordHash, role, version, ETagUtil.of(id, version));
+  }
+}
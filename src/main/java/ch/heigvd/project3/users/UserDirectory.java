@@ -0,0 +1,403 @@
+package ch.heigvd.project3.users;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The users map together with its secondary indexes, shared by the authentication and the user
+ * management controllers so that looking users up does not scan every user.
+ *
+ * <p>An email is reserved in the index before the user owning it is stored, and released after the
+ * user stops owning it, so two concurrent requests can never both claim the same email.
+ *
+ * <p>The first name, last name and role indexes map a key to the ids of the matching users in
+ * ascending order, so that filtered lists are read in pages like the full list. They are updated by
+ * the user management controller while the changed user is locked in the map. The number of admins
+ * is maintained alongside, and an admin can only be demoted or removed through a compare-and-set
+ * that keeps at least one.
+ */
+public class UserDirectory {
+  private final ConcurrentHashMap<Integer, User> users;
+  private final ConcurrentHashMap<String, Integer> emailIndex = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Ids> firstNameIndex = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Ids> lastNameIndex = new ConcurrentHashMap<>();
+  private final Map<Role, Ids> roleIndex = new EnumMap<>(Role.class);
+  private final AtomicInteger adminCount = new AtomicInteger();
+
+  public UserDirectory(ConcurrentHashMap<Integer, User> users) {
+    this.users = users;
+    for (Role role : Role.values()) {
+      roleIndex.put(role, new Ids());
+    }
+    for (User user : users.values()) {
+      emailIndex.putIfAbsent(normalizeEmail(user.email()), user.id());
+      index(user);
+    }
+  }
+
+  /**
+   * @return ConcurrentHashMap<Integer, User>, the users by id
+   */
+  public ConcurrentHashMap<Integer, User> users() {
+    return users;
+  }
+
+  /**
+   * Finds a user by email, ignoring case.
+   *
+   * @param email String, the email to look for
+   * @return User, the user owning the email, or null if there is none
+   */
+  public User findByEmail(String email) {
+    Integer id = emailIndex.get(normalizeEmail(email));
+    User user = id == null ? null : users.get(id);
+    // The index can briefly point to a user whose email is being changed
+    return user != null && user.email().equalsIgnoreCase(email) ? user : null;
+  }
+
+  /**
+   * Checks whether an email belongs to, or is being claimed by, a user other than the given one.
+   *
+   * @param email String, the email to check
+   * @param id int, the user allowed to own the email
+   * @return boolean, true if another user owns the email
+   */
+  public boolean isEmailTaken(String email, int id) {
+    Integer owner = emailIndex.get(normalizeEmail(email));
+    return owner != null && owner != id;
+  }
+
+  /**
+   * Atomically reserves an email for a user.
+   *
+   * @param email String, the email to reserve
+   * @param id int, the user claiming it
+   * @return boolean, false if another user already owns the email
+   */
+  public boolean reserveEmail(String email, int id) {
+    Integer owner = emailIndex.putIfAbsent(normalizeEmail(email), id);
+    return owner == null || owner == id;
+  }
+
+  /**
+   * Releases an email, if it is still owned by the given user.
+   *
+   * @param email String, the email to release
+   * @param id int, the user that owned it
+   */
+  public void releaseEmail(String email, int id) {
+    emailIndex.remove(normalizeEmail(email), id);
+  }
+
+  /**
+   * Indexes a user that was just stored.
+   *
+   * @param user User, the new user
+   */
+  public void add(User user) {
+    index(user);
+  }
+
+  /**
+   * Adds a user to the name and role indexes and counts it if it is an admin.
+   *
+   * @param user User, the user to index
+   */
+  private void index(User user) {
+    addTo(firstNameIndex, normalizeName(user.firstName()), user.id());
+    addTo(lastNameIndex, normalizeName(user.lastName()), user.id());
+    roleIndex.get(user.role()).add(user.id());
+    if (user.role() == Role.ADMIN) {
+      adminCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Reindexes a user that is being replaced. Must be called while the user is locked in the map.
+   * The write is logged once the last admin check passed and before any index changes.
+   *
+   * @param previous User, the user currently stored
+   * @param next User, the user replacing it
+   * @param log Runnable, logs the write; if it throws, nothing is changed
+   * @return boolean, false with nothing changed if next demotes the last admin
+   */
+  public boolean replace(User previous, User next, Runnable log) {
+    boolean demoted = previous.role() == Role.ADMIN && next.role() != Role.ADMIN;
+    if (demoted && !releaseAdmin()) {
+      return false;
+    }
+    logOrRestoreAdmin(log, demoted);
+    if (previous.role() != Role.ADMIN && next.role() == Role.ADMIN) {
+      adminCount.incrementAndGet();
+    }
+    reindex(previous, next);
+    return true;
+  }
+
+  /**
+   * Unindexes a user that is being removed, and releases its email. Must be called while the user
+   * is locked in the map. The removal is logged once the last admin check passed and before any
+   * index changes.
+   *
+   * @param user User, the user currently stored
+   * @param log Runnable, logs the removal; if it throws, nothing is changed
+   * @return boolean, false with nothing changed if the user is the last admin
+   */
+  public boolean remove(User user, Runnable log) {
+    boolean admin = user.role() == Role.ADMIN;
+    if (admin && !releaseAdmin()) {
+      return false;
+    }
+    logOrRestoreAdmin(log, admin);
+    unindex(user);
+    return true;
+  }
+
+  /**
+   * Indexes a user received from the primary instance, when this instance is a read replica. The
+   * primary already checked the email and the last admin, so neither is checked again: another user
+   * still owning the email here is about to be changed by a later mutation.
+   *
+   * @param previous User, the user currently stored, or null if it is new
+   * @param next User, the user replacing it
+   */
+  public void replicate(User previous, User next) {
+    emailIndex.put(normalizeEmail(next.email()), next.id());
+    if (previous == null) {
+      index(next);
+      return;
+    }
+    if (!previous.email().equalsIgnoreCase(next.email())) {
+      releaseEmail(previous.email(), previous.id());
+    }
+    if (previous.role() == Role.ADMIN && next.role() != Role.ADMIN) {
+      adminCount.decrementAndGet();
+    } else if (previous.role() != Role.ADMIN && next.role() == Role.ADMIN) {
+      adminCount.incrementAndGet();
+    }
+    reindex(previous, next);
+  }
+
+  /**
+   * Unindexes a user removed on the primary instance, when this instance is a read replica.
+   *
+   * @param user User, the user currently stored
+   */
+  public void replicateRemoval(User user) {
+    if (user.role() == Role.ADMIN) {
+      adminCount.decrementAndGet();
+    }
+    unindex(user);
+  }
+
+  /**
+   * @return int, the number of admins
+   */
+  public int adminCount() {
+    return adminCount.get();
+  }
+
+  /**
+   * Returns the ids that can match the given filters, in ascending order: the smallest of the
+   * indexes of the given filters, chosen from their counts without walking them. The users must
+   * still be checked against every filter.
+   *
+   * @param firstName String, optional first name filter, ignoring case
+   * @param lastName String, optional last name filter, ignoring case
+   * @param role Role, optional role filter
+   * @return NavigableSet<Integer>, the candidate ids, or null if no filter is given
+   */
+  public NavigableSet<Integer> candidates(String firstName, String lastName, Role role) {
+    Ids smallest = null;
+    if (firstName != null) {
+      smallest = smaller(smallest, firstNameIndex.get(normalizeName(firstName)));
+    }
+    if (lastName != null) {
+      smallest = smaller(smallest, lastNameIndex.get(normalizeName(lastName)));
+    }
+    if (role != null) {
+      smallest = smaller(smallest, roleIndex.get(role));
+    }
+    return smallest == null ? null : smallest.set;
+  }
+
+  /**
+   * Moves a user between the name and role indexes, without touching the admin count.
+   *
+   * @param previous User, the user currently stored
+   * @param next User, the user replacing it
+   */
+  private void reindex(User previous, User next) {
+    int id = previous.id();
+    String previousFirst = normalizeName(previous.firstName());
+    String nextFirst = normalizeName(next.firstName());
+    if (!previousFirst.equals(nextFirst)) {
+      addTo(firstNameIndex, nextFirst, id);
+      removeFrom(firstNameIndex, previousFirst, id);
+    }
+    String previousLast = normalizeName(previous.lastName());
+    String nextLast = normalizeName(next.lastName());
+    if (!previousLast.equals(nextLast)) {
+      addTo(lastNameIndex, nextLast, id);
+      removeFrom(lastNameIndex, previousLast, id);
+    }
+    if (previous.role() != next.role()) {
+      roleIndex.get(next.role()).add(id);
+      roleIndex.get(previous.role()).remove(id);
+    }
+  }
+
+  /**
+   * Removes a user from the name and role indexes and releases its email, without touching the
+   * admin count.
+   *
+   * @param user User, the user to unindex
+   */
+  private void unindex(User user) {
+    removeFrom(firstNameIndex, normalizeName(user.firstName()), user.id());
+    removeFrom(lastNameIndex, normalizeName(user.lastName()), user.id());
+    roleIndex.get(user.role()).remove(user.id());
+    releaseEmail(user.email(), user.id());
+  }
+
+  /**
+   * Logs a write, giving back the admin it released if logging fails.
+   *
+   * @param log Runnable, logs the write
+   * @param released boolean, true if the write released an admin
+   */
+  private void logOrRestoreAdmin(Runnable log, boolean released) {
+    try {
+      log.run();
+    } catch (RuntimeException e) {
+      if (released) {
+        adminCount.incrementAndGet();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Decrements the admin count unless it would drop below one.
+   *
+   * @return boolean, false if there is only one admin left
+   */
+  private boolean releaseAdmin() {
+    while (true) {
+      int admins = adminCount.get();
+      if (admins <= 1) {
+        return false;
+      }
+      if (adminCount.compareAndSet(admins, admins - 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @param current Ids, the smallest entry so far, or null
+   * @param candidate Ids, the index entry of another filter, or null if no user matches it
+   * @return Ids, the smaller of both
+   */
+  private static Ids smaller(Ids current, Ids candidate) {
+    if (candidate == null) {
+      return Ids.NONE;
+    }
+    return current == null || candidate.count() < current.count() ? candidate : current;
+  }
+
+  /**
+   * Adds an id under a key, creating the entry atomically.
+   *
+   * @param index ConcurrentHashMap<String, Ids>, the index
+   * @param key String, the normalized key
+   * @param id int, the user id
+   */
+  private static void addTo(ConcurrentHashMap<String, Ids> index, String key, int id) {
+    index.compute(
+        key,
+        (k, ids) -> {
+          Ids entry = ids == null ? new Ids() : ids;
+          entry.add(id);
+          return entry;
+        });
+  }
+
+  /**
+   * Removes an id from a key, dropping the entry atomically once it is empty.
+   *
+   * @param index ConcurrentHashMap<String, Ids>, the index
+   * @param key String, the normalized key
+   * @param id int, the user id
+   */
+  private static void removeFrom(ConcurrentHashMap<String, Ids> index, String key, int id) {
+    index.computeIfPresent(
+        key,
+        (k, ids) -> {
+          ids.remove(id);
+          return ids.count() == 0 ? null : ids;
+        });
+  }
+
+  /**
+   * Normalizes a first or last name so that index lookups ignore case.
+   *
+   * @param name String, the name as entered
+   * @return String, the key used in the index
+   */
+  private static String normalizeName(String name) {
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Normalizes an email so that index lookups ignore case.
+   *
+   * @param email String, the email as entered
+   * @return String, the key used in the index
+   */
+  private static String normalizeEmail(String email) {
+    return email.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * The ids of the users having a key, in ascending order, and their number. The size of a skip
+   * list is counted by walking it, so the number is kept alongside to compare filters in O(1).
+   */
+  private static final class Ids {
+    // Entry of a filter that no user matches, never changed
+    static final Ids NONE = new Ids();
+
+    final NavigableSet<Integer> set = new ConcurrentSkipListSet<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param id int, a user id, added while the user is locked in the map
+     */
+    void add(int id) {
+      if (set.add(id)) {
+        count.incrementAndGet();
+      }
+    }
+
+    /**
+     * @param id int, a user id, removed while the user is locked in the map
+     */
+    void remove(int id) {
+      if (set.remove(id)) {
+        count.decrementAndGet();
+      }
+    }
+
+    /**
+     * @return int, the number of ids
+     */
+    int count() {
+      return count.get();
+    }
+  }
+}
@@ -1,6 +1,11 @@
 package ch.heigvd.project3.users;
 
-import ch.heigvd.project3.auth.AuthUtil;
+import ch.heigvd.project3.auth.PasswordHasher;
+import ch.heigvd.project3.persistence.Mutation;
+import ch.heigvd.project3.persistence.ReplicationLog;
+import ch.heigvd.project3.persistence.WriteAheadLog;
+import ch.heigvd.project3.util.ETagUtil;
+import ch.heigvd.project3.util.JsonStreamUtil;
 import io.javalin.http.*;
 import io.javalin.openapi.HttpMethod;
 import io.javalin.openapi.OpenApi;
@@ -9,31 +14,131 @@ import io.javalin.openapi.OpenApiParam;
 import io.javalin.openapi.OpenApiRequestBody;
 import io.javalin.openapi.OpenApiResponse;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Controller for user-related actions such as creating, retrieving, updating, and deleting users.
  */
 public class UsersController {
+  // Page size used when a cursor is given without a limit, and the largest page allowed
+  private static final int DEFAULT_PAGE_SIZE = 100;
+  private static final int MAX_PAGE_SIZE = 1000;
+
+  // Longest name or email accepted, and longest password, in chars
+  private static final int MAX_FIELD_LENGTH = 256;
+  private static final int MAX_PASSWORD_LENGTH = 1024;
+
   private final ConcurrentHashMap<Integer, User> users;
 
+  // Same map as users, with the email index used for lookups and uniqueness
+  private final UserDirectory directory;
+
+  // User ids in ascending order, used to serve pages in O(page size)
+  private final ConcurrentSkipListSet<Integer> ids = new ConcurrentSkipListSet<>();
+
   private final AtomicInteger uniqueId = new AtomicInteger(1);
 
-  public UsersController(ConcurrentHashMap<Integer, User> users) {
-    this.users = users;
+  private final WriteAheadLog wal;
+
+  private final PasswordHasher hasher;
+
+  // Feeds the read replicas, published to after the revision is bumped
+  private final ReplicationLog replication;
+
+  // Store revision, bumped after every create, update and delete has been applied to the map
+  private final AtomicLong revision = new AtomicLong();
+
+  // Distinguishes revisions of this process from those of a previous run, whose counter started
+  // from zero as well
+  private final String revisionEpoch = Long.toString(System.currentTimeMillis(), 36);
+
+  public UsersController(
+      UserDirectory directory,
+      WriteAheadLog wal,
+      PasswordHasher hasher,
+      ReplicationLog replication) {
+    this.users = directory.users();
+    this.directory = directory;
+    this.wal = wal;
+    this.hasher = hasher;
+    this.replication = replication;
+    for (Integer id : this.users.keySet()) {
+      ids.add(id);
+      uniqueId.accumulateAndGet(id + 1, Math::max);
+    }
   }
 
   /**
-   * Creates a new user.
+   * Makes sure that ids handed out from now on are greater than an id used before, for example by a
+   * user that was recovered from the write-ahead log or deleted before a restart.
+   *
+   * @param highestId int, the highest id already used
+   */
+  public void restoreIdCounter(int highestId) {
+    uniqueId.accumulateAndGet(highestId + 1, Math::max);
+  }
+
+  /**
+   * @return int, the highest id handed out so far, including ids of deleted users
+   */
+  public int highestIdUsed() {
+    return uniqueId.get() - 1;
+  }
+
+  /**
+   * Stores a user received from the primary instance, when this instance is a read replica.
+   *
+   * @param user User, the latest state of the user on the primary
+   */
+  public void replicate(User user) {
+    users.compute(
+        user.id(),
+        (key, current) -> {
+          directory.replicate(current, user);
+          return user;
+        });
+    ids.add(user.id());
+    uniqueId.accumulateAndGet(user.id() + 1, Math::max);
+    revision.incrementAndGet();
+  }
+
+  /**
+   * Removes a user removed on the primary instance, when this instance is a read replica.
+   *
+   * @param id int, the removed user
+   */
+  public void replicateRemoval(int id) {
+    boolean[] removed = new boolean[1];
+    users.computeIfPresent(
+        id,
+        (key, current) -> {
+          directory.replicateRemoval(current);
+          removed[0] = true;
+          return null;
+        });
+    if (removed[0]) {
+      ids.remove(id);
+      revision.incrementAndGet();
+    }
+  }
+
+  /**
+   * Creates a new user. The password is hashed on the hashing pool and the response is completed
+   * asynchronously.
    *
    * @param ctx the Javalin context containing the request and response
    * @throws ConflictResponse if a user with the same email already exists
+   * @throws TooManyRequestsResponse if too many passwords are already waiting to be hashed
    */
   @OpenApi(
       path = "/users/create",
@@ -51,7 +156,8 @@ public class UsersController {
       tags = {"User Management"},
       responses = {
         @OpenApiResponse(status = "201", description = "User created successfully"),
-        @OpenApiResponse(status = "409", description = "User with the same email already exists")
+        @OpenApiResponse(status = "409", description = "User with the same email already exists"),
+        @OpenApiResponse(status = "429", description = "Too many password hashes in progress")
       })
   public void create(Context ctx) {
     User newUser =
@@ -61,26 +167,64 @@ public class UsersController {
             .check(obj -> obj.email() != null, "Missing email")
             .check(obj -> obj.passwordHash() != null, "Missing password")
             .check(obj -> Role.isValid(obj.role()), "Missing role")
+            .check(
+                obj ->
+                    fitsIn(obj.firstName(), MAX_FIELD_LENGTH)
+                        && fitsIn(obj.lastName(), MAX_FIELD_LENGTH)
+                        && fitsIn(obj.email(), MAX_FIELD_LENGTH),
+                "Field too long")
+            .check(obj -> fitsIn(obj.passwordHash(), MAX_PASSWORD_LENGTH), "Password too long")
             .get();
 
-    for (User user : users.values()) {
-      if (newUser.email().equalsIgnoreCase(user.email())) {
-        throw new ConflictResponse();
-      }
+    if (directory.findByEmail(newUser.email()) != null) {
+      throw new ConflictResponse();
     }
 
-    String hash = AuthUtil.createHash(newUser.passwordHash());
+    User requested = newUser;
+    CompletableFuture<String> hashing = hasher.hash(requested.passwordHash());
+    ctx.future(() -> hashing.thenAccept(hash -> store(ctx, requested, hash)));
+  }
 
-    newUser =
-        new User(
+  /**
+   * Stores a new user once its password has been hashed.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @param requested the user as sent by the client
+   * @param hash the hash of its password
+   */
+  private void store(Context ctx, User requested, String hash) {
+    User created =
+        User.versioned(
             uniqueId.getAndIncrement(),
-            newUser.firstName(),
-            newUser.lastName(),
-            newUser.email(),
+            requested.firstName(),
+            requested.lastName(),
+            requested.email(),
             hash,
-            newUser.role());
+            requested.role(),
+            1);
+
+    // The email is reserved atomically so that two concurrent creates cannot both succeed
+    if (!directory.reserveEmail(created.email(), created.id())) {
+      throw new ConflictResponse();
+    }
 
-    users.put(newUser.id(), newUser);
+    // Logged while the entry is locked, so that a write racing on the new id is logged after it
+    users.computeIfAbsent(
+        created.id(),
+        key -> {
+          try {
+            wal.append(new Mutation.UserPut(created));
+          } catch (RuntimeException e) {
+            directory.releaseEmail(created.email(), created.id());
+            throw e;
+          }
+          directory.add(created);
+          return created;
+        });
+    ids.add(created.id());
+    revision.incrementAndGet();
+    replication.userChanged(created.id());
+    wal.awaitDurable();
 
     ctx.status(HttpStatus.CREATED);
   }
@@ -139,11 +283,10 @@ public class UsersController {
       throw new NotFoundResponse();
     }
 
-    PublicUser publicUser = toPublicUser(user);
-    String etag = computeUserEtag(publicUser);
+    String etag = user.etag();
     String ifNoneMatch = ctx.header(Header.IF_NONE_MATCH);
 
-    if (etagMatches(ifNoneMatch, etag)) {
+    if (ETagUtil.ifNoneMatch(ifNoneMatch, etag)) {
       ctx.header(Header.ETAG, etag);
       ctx.header(Header.CACHE_CONTROL, "public, max-age=0, must-revalidate");
       ctx.status(HttpStatus.NOT_MODIFIED);
@@ -153,19 +296,40 @@ public class UsersController {
     ctx.header(Header.ETAG, etag);
     ctx.header(Header.CACHE_CONTROL, "public, max-age=0, must-revalidate");
     ctx.status(HttpStatus.OK);
-    ctx.json(publicUser);
+    ctx.json(toPublicUser(user));
   }
 
   /**
-   * Retrieves multiple users, optionally filtered by first name and/or last name.
+   * Retrieves multiple users, optionally filtered by first name, last name and/or role and
+   * paginated. Filtered lists only read the users found in the index of the most selective filter.
    *
    * @param ctx the Javalin context containing the request and response
+   * @throws BadRequestResponse if the limit, the cursor or the role is invalid
    */
   @OpenApi(
       path = "/users/list",
       methods = {HttpMethod.GET},
       summary = "Get multiple users",
-      description = "Retrieves multiple users, optionally filtered by first name and/or last name.",
+      description =
+          "Retrieves multiple users by ascending id, optionally filtered by first name, last name"
+              + " and/or role. When a limit or a cursor is given, users are returned one page at a"
+              + " time."
+              + " With stream=true the whole list is written as it is read.",
+      queryParams = {
+        @OpenApiParam(name = "role", type = Role.class, description = "Only users with this role"),
+        @OpenApiParam(
+            name = "stream",
+            type = Boolean.class,
+            description = "Streams the whole list with chunked encoding, ignores limit and cursor"),
+        @OpenApiParam(
+            name = "limit",
+            type = Integer.class,
+            description = "Maximum number of users in the page, enables pagination"),
+        @OpenApiParam(
+            name = "cursor",
+            type = String.class,
+            description = "Opaque cursor from the X-Next-Cursor header of the previous page")
+      },
       tags = {"User Management"},
       responses = {
         @OpenApiResponse(
@@ -180,6 +344,10 @@ public class UsersController {
               @OpenApiParam(
                   name = "Cache-Control",
                   description = "Cache policy directives for this response",
+                  type = String.class),
+              @OpenApiParam(
+                  name = "X-Next-Cursor",
+                  description = "Cursor of the next page, absent on the last page",
                   type = String.class)
             }),
         @OpenApiResponse(
@@ -199,29 +367,71 @@ public class UsersController {
   public void getMany(Context ctx) {
     String firstName = ctx.queryParam("firstName");
     String lastName = ctx.queryParam("lastName");
+    Role role = parseRole(ctx.queryParam("role"));
+    String cursor = ctx.queryParam("cursor");
+    Integer limit =
+        ctx.queryParamAsClass("limit", Integer.class)
+            .allowNullable()
+            .check(l -> l == null || (l > 0 && l <= MAX_PAGE_SIZE), "Incorrect page size")
+            .get();
+    boolean stream = ctx.queryParamAsClass("stream", Boolean.class).getOrDefault(false);
+
+    boolean paged = !stream && (cursor != null || limit != null);
+    int pageSize = paged ? (limit == null ? DEFAULT_PAGE_SIZE : limit) : Integer.MAX_VALUE;
+    int after = decodeCursor(cursor);
+
+    // The revision is read before the data so that the ETag never claims a newer state than the
+    // users that are returned
+    String page = paged ? (cursor == null ? "" : cursor) + "|" + pageSize : "*";
+    String etag = computeUserListEtag(revision.get(), firstName, lastName, role, page);
+    String ifNoneMatch = ctx.header(Header.IF_NONE_MATCH);
+
+    if (ETagUtil.ifNoneMatch(ifNoneMatch, etag)) {
+      ctx.header(Header.ETAG, etag);
+      ctx.header(Header.CACHE_CONTROL, "private, max-age=0, must-revalidate");
+      ctx.status(HttpStatus.NOT_MODIFIED);
+      return;
+    }
+
+    // Without filters every id is a candidate, otherwise only those of the most selective index
+    NavigableSet<Integer> candidates = directory.candidates(firstName, lastName, role);
+    if (candidates == null) {
+      candidates = ids;
+    }
+
+    if (stream) {
+      ctx.header(Header.ETAG, etag);
+      ctx.header(Header.CACHE_CONTROL, "private, max-age=0, must-revalidate");
+      ctx.status(HttpStatus.OK);
+      JsonStreamUtil.writeArray(
+          ctx,
+          candidates.stream()
+              .map(users::get)
+              .filter(Objects::nonNull)
+              .filter(user -> matchesFilters(user, firstName, lastName, role))
+              .map(this::toPublicUser));
+      return;
+    }
 
     List<PublicUser> usersResult = new ArrayList<>();
+    String nextCursor = null;
 
-    for (User user : this.users.values()) {
-      if (firstName != null && !user.firstName().equalsIgnoreCase(firstName)) {
+    for (Integer id : candidates.tailSet(after, false)) {
+      User user = users.get(id);
+      if (user == null || !matchesFilters(user, firstName, lastName, role)) {
         continue;
       }
 
-      if (lastName != null && !user.lastName().equalsIgnoreCase(lastName)) {
-        continue;
+      if (usersResult.size() == pageSize) {
+        nextCursor = encodeCursor(usersResult.get(usersResult.size() - 1).id());
+        break;
       }
 
       usersResult.add(toPublicUser(user));
     }
 
-    String etag = computeUserListEtag(usersResult, firstName, lastName);
-    String ifNoneMatch = ctx.header(Header.IF_NONE_MATCH);
-
-    if (etagMatches(ifNoneMatch, etag)) {
-      ctx.header(Header.ETAG, etag);
-      ctx.header(Header.CACHE_CONTROL, "private, max-age=0, must-revalidate");
-      ctx.status(HttpStatus.NOT_MODIFIED);
-      return;
+    if (nextCursor != null) {
+      ctx.header("X-Next-Cursor", nextCursor);
     }
 
     ctx.header(Header.ETAG, etag);
@@ -231,20 +441,31 @@ public class UsersController {
   }
 
   /**
-   * Updates an existing user.
+   * Updates an existing user. The password is hashed on the hashing pool and the response is
+   * completed asynchronously.
    *
    * @param ctx the Javalin context containing the request and response
    * @throws NotFoundResponse if the user with the specified ID does not exist
    * @throws ConflictResponse if a user with the same email already exists
+   * @throws PreconditionFailedResponse if the user does not match the If-Match header
+   * @throws TooManyRequestsResponse if too many passwords are already waiting to be hashed
    */
   @OpenApi(
       path = "/users/update/{id}",
       methods = {HttpMethod.PUT},
       summary = "Update an existing user",
-      description = "Updates the details of an existing user.",
+      description =
+          "Updates the details of an existing user. With If-Match, the user is only updated if"
+              + " its ETag still matches, checked and written in one atomic step.",
       pathParams = {
         @OpenApiParam(name = "id", type = Integer.class, description = "User ID", required = true)
       },
+      headers = {
+        @OpenApiParam(
+            name = "If-Match",
+            description = "ETag of the user as last read, the write fails if it changed since",
+            type = String.class)
+      },
       requestBody =
           @OpenApiRequestBody(
               content = {
@@ -255,17 +476,34 @@ public class UsersController {
               }),
       tags = {"User Management"},
       responses = {
-        @OpenApiResponse(status = "200", description = "User updated successfully"),
+        @OpenApiResponse(
+            status = "200",
+            description = "User updated successfully",
+            headers = {
+              @OpenApiParam(
+                  name = "ETag",
+                  description = "ETag of the updated user, for the next If-Match",
+                  type = String.class)
+            }),
         @OpenApiResponse(status = "404", description = "User not found"),
-        @OpenApiResponse(status = "409", description = "User with the same email already exists")
+        @OpenApiResponse(status = "409", description = "User with the same email already exists"),
+        @OpenApiResponse(status = "412", description = "User modified since the If-Match ETag"),
+        @OpenApiResponse(status = "429", description = "Too many password hashes in progress")
       })
   public void update(Context ctx) {
     Integer id = ctx.pathParamAsClass("id", Integer.class).get();
 
-    if (!users.containsKey(id)) {
+    User previous = users.get(id);
+    if (previous == null) {
       throw new NotFoundResponse("User not found.");
     }
 
+    // Fails fast before hashing, the authoritative check is made when the user is replaced
+    String ifMatch = ctx.header(Header.IF_MATCH);
+    if (ifMatch != null && !ETagUtil.ifMatch(ifMatch, previous.etag())) {
+      throw new PreconditionFailedResponse("User was modified.");
+    }
+
     User updateUser =
         ctx.bodyValidator(User.class)
             .check(obj -> obj.firstName() != null, "Missing first name")
@@ -273,34 +511,94 @@ public class UsersController {
             .check(obj -> obj.email() != null, "Missing email")
             .check(obj -> obj.passwordHash() != null, "Missing password")
             .check(obj -> Role.isValid(obj.role()), "Missing role")
+            .check(
+                obj ->
+                    fitsIn(obj.firstName(), MAX_FIELD_LENGTH)
+                        && fitsIn(obj.lastName(), MAX_FIELD_LENGTH)
+                        && fitsIn(obj.email(), MAX_FIELD_LENGTH),
+                "Field too long")
+            .check(obj -> fitsIn(obj.passwordHash(), MAX_PASSWORD_LENGTH), "Password too long")
             .get();
 
-    for (User user : users.values()) {
-      if (updateUser.email().equalsIgnoreCase(user.email()) && user.id() != id) {
-        throw new ConflictResponse("Email already in use by another user.");
-      }
+    if (directory.isEmailTaken(updateUser.email(), id)) {
+      throw new ConflictResponse("Email already in use by another user.");
     }
 
-    if (users.get(id).role() == Role.ADMIN && updateUser.role() != Role.ADMIN) {
-      long adminCount = users.values().stream().filter(u -> u.role() == Role.ADMIN).count();
-      if (adminCount <= 1) {
-        throw new ConflictResponse("Cannot remove the last admin user.");
-      }
+    // Fails fast before hashing, the authoritative check is made when the user is replaced
+    if (previous.role() == Role.ADMIN
+        && updateUser.role() != Role.ADMIN
+        && directory.adminCount() <= 1) {
+      throw new ConflictResponse("Cannot remove the last admin user.");
     }
 
-    String hash = AuthUtil.createHash(updateUser.passwordHash());
+    User requested = updateUser;
+    CompletableFuture<String> hashing = hasher.hash(requested.passwordHash());
+    ctx.future(() -> hashing.thenAccept(hash -> replace(ctx, id, requested, hash, ifMatch)));
+  }
 
-    updateUser =
-        new User(
+  /**
+   * Replaces a user once the new password has been hashed.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @param id the ID of the user to replace
+   * @param requested the user as sent by the client
+   * @param hash the hash of the new password
+   * @param ifMatch the If-Match header, or null to replace the user whatever its version
+   * @throws NotFoundResponse if the user was deleted in the meantime
+   * @throws PreconditionFailedResponse if the user no longer matches the If-Match header
+   */
+  private void replace(Context ctx, int id, User requested, String hash, String ifMatch) {
+    User updated =
+        users.computeIfPresent(
             id,
-            updateUser.firstName(),
-            updateUser.lastName(),
-            updateUser.email(),
-            hash,
-            updateUser.role());
-
-    users.put(id, updateUser);
+            (key, current) -> {
+              // Checked on the locked entry, so no other write can happen in between
+              if (ifMatch != null && !ETagUtil.ifMatch(ifMatch, current.etag())) {
+                throw new PreconditionFailedResponse("User was modified.");
+              }
+              User next =
+                  User.versioned(
+                      id,
+                      requested.firstName(),
+                      requested.lastName(),
+                      requested.email(),
+                      hash,
+                      requested.role(),
+                      current.version() + 1);
+              boolean emailChanged = !current.email().equalsIgnoreCase(next.email());
+
+              // The indexes are updated while the user is locked: the new email is reserved, the
+              // admin count is checked and decremented in one step, the write is logged, then the
+              // user is reindexed and the old email released. A failure gives back the new email.
+              if (!directory.reserveEmail(next.email(), id)) {
+                throw new ConflictResponse("Email already in use by another user.");
+              }
+              boolean replaced = false;
+              try {
+                replaced =
+                    directory.replace(current, next, () -> wal.append(new Mutation.UserPut(next)));
+              } finally {
+                if (!replaced && emailChanged) {
+                  directory.releaseEmail(next.email(), id);
+                }
+              }
+              if (!replaced) {
+                throw new ConflictResponse("Cannot remove the last admin user.");
+              }
+              if (emailChanged) {
+                directory.releaseEmail(current.email(), id);
+              }
+              return next;
+            });
+
+    if (updated == null) {
+      throw new NotFoundResponse("User not found.");
+    }
+    revision.incrementAndGet();
+    replication.userChanged(id);
+    wal.awaitDurable();
 
+    ctx.header(Header.ETAG, updated.etag());
     ctx.status(HttpStatus.OK);
   }
 
@@ -309,32 +607,99 @@ public class UsersController {
    *
    * @param ctx the Javalin context containing the request and response
    * @throws NotFoundResponse if the user with the specified ID does not exist
+   * @throws ConflictResponse if the user is the last admin
+   * @throws PreconditionFailedResponse if the user does not match the If-Match header
    */
   @OpenApi(
       path = "/users/remove/{id}",
       methods = {HttpMethod.DELETE},
       summary = "Delete a user",
-      description = "Deletes a user by their ID.",
+      description =
+          "Deletes a user by their ID. With If-Match, the user is only deleted if its ETag still"
+              + " matches, checked and removed in one atomic step.",
       pathParams = {
         @OpenApiParam(name = "id", type = Integer.class, description = "User ID", required = true)
       },
+      headers = {
+        @OpenApiParam(
+            name = "If-Match",
+            description = "ETag of the user as last read, the write fails if it changed since",
+            type = String.class)
+      },
       tags = {"User Management"},
       responses = {
         @OpenApiResponse(status = "200", description = "User deleted successfully"),
-        @OpenApiResponse(status = "404", description = "User not found")
+        @OpenApiResponse(status = "404", description = "User not found"),
+        @OpenApiResponse(status = "409", description = "Cannot remove the last admin user"),
+        @OpenApiResponse(status = "412", description = "User modified since the If-Match ETag")
       })
   public void delete(Context ctx) {
     Integer id = ctx.pathParamAsClass("id", Integer.class).get();
-
-    if (!users.containsKey(id)) {
+    String ifMatch = ctx.header(Header.IF_MATCH);
+
+    // The last admin check, the log and the removal happen while the user is locked
+    boolean[] removed = new boolean[1];
+    users.computeIfPresent(
+        id,
+        (key, current) -> {
+          if (ifMatch != null && !ETagUtil.ifMatch(ifMatch, current.etag())) {
+            throw new PreconditionFailedResponse("User was modified.");
+          }
+          if (!directory.remove(current, () -> wal.append(new Mutation.UserRemove(id)))) {
+            throw new ConflictResponse("Cannot remove the last admin user.");
+          }
+          removed[0] = true;
+          return null;
+        });
+
+    if (!removed[0]) {
       throw new NotFoundResponse("User not found.");
     }
-
-    users.remove(id);
+    ids.remove(id);
+    revision.incrementAndGet();
+    replication.userChanged(id);
+    wal.awaitDurable();
 
     ctx.status(HttpStatus.OK);
   }
 
+  /**
+   * Checks a user against the optional first name, last name and role filters of a list request.
+   *
+   * @param user User, the user to check
+   * @param firstName String, optional first name filter
+   * @param lastName String, optional last name filter
+   * @param role Role, optional role filter
+   * @return boolean, true if the user matches every given filter
+   */
+  private static boolean matchesFilters(User user, String firstName, String lastName, Role role) {
+    if (firstName != null && !user.firstName().equalsIgnoreCase(firstName)) {
+      return false;
+    }
+    if (role != null && user.role() != role) {
+      return false;
+    }
+    return lastName == null || user.lastName().equalsIgnoreCase(lastName);
+  }
+
+  /**
+   * Parses the optional role filter of a list request.
+   *
+   * @param role String, the role name, or null
+   * @return Role, the role, or null if no filter is given
+   * @throws BadRequestResponse if the role does not exist
+   */
+  private static Role parseRole(String role) {
+    if (role == null) {
+      return null;
+    }
+    try {
+      return Role.valueOf(role.trim().toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("Invalid role.");
+    }
+  }
+
   /**
    * Converts a User to a PublicUser by omitting sensitive information.
    *
@@ -346,95 +711,67 @@ public class UsersController {
   }
 
   /**
-   * Checks if the provided ETag matches the If-None-Match header.
+   * Encodes the id of the last user of a page as an opaque cursor.
    *
-   * @param ifNoneMatch String, the value of the If-None-Match header
-   * @param etag String, the computed ETag of the resource
-   * @return boolean, true if there is a match, false otherwise
+   * @param id int, the id of the last user returned
+   * @return String, the cursor
    */
-  private boolean etagMatches(String ifNoneMatch, String etag) {
-    if (ifNoneMatch == null || ifNoneMatch.isBlank()) {
-      return false;
-    }
-    String candidate = ifNoneMatch.trim();
-    if ("*".equals(candidate)) {
-      return true;
-    }
-    String[] parts = candidate.split(",");
-    for (String part : parts) {
-      if (part.trim().equals(etag)) {
-        return true;
-      }
-    }
-    return false;
+  private static String encodeCursor(int id) {
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(Integer.toString(id).getBytes(StandardCharsets.UTF_8));
   }
 
   /**
-   * Computes a weak ETag for a PublicUser.
+   * Decodes a cursor produced by encodeCursor.
    *
-   * @param user PublicUser, the PublicUser for which to compute the ETag
-   * @return a weak ETag string representing the PublicUser
+   * @param cursor String, the cursor, or null for the first page
+   * @return int, the id after which the page starts
+   * @throws BadRequestResponse if the cursor is malformed
    */
-  private String computeUserEtag(PublicUser user) {
-    String payload =
-        user.id()
-            + "|"
-            + user.firstName()
-            + "|"
-            + user.lastName()
-            + "|"
-            + user.email()
-            + "|"
-            + user.role();
+  private static int decodeCursor(String cursor) {
+    if (cursor == null) {
+      return Integer.MIN_VALUE;
+    }
     try {
-      MessageDigest digest = MessageDigest.getInstance("SHA-256");
-      byte[] hash = digest.digest(payload.getBytes(StandardCharsets.UTF_8));
-      String b64 = Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
-      return "W/\"" + b64 + "\"";
-    } catch (NoSuchAlgorithmException e) {
-      String fallback = Integer.toHexString(payload.hashCode());
-      return "W/\"" + fallback + "\"";
+      return Integer.parseInt(
+          new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("Invalid cursor.");
     }
   }
 
   /**
-   * Computes a weak ETag for a list of PublicUsers, considering optional filters.
+   * Computes a weak ETag for a list of PublicUsers from the store revision and the applied filters,
+   * without reading the users themselves.
    *
-   * @param users List<PublicUser>, the list of PublicUsers to compute the ETag for
+   * @param revision long, the store revision the list is based on
    * @param filterFirstName String, optional first name filter
    * @param filterLastName String, optional last name filter
+   * @param role Role, optional role filter
+   * @param page String, cursor and page size of the request, "*" when not paginated
    * @return a weak ETag string representing the list of PublicUsers and applied filters
    */
   private String computeUserListEtag(
-      List<PublicUser> users, String filterFirstName, String filterLastName) {
-    List<PublicUser> ordered = new ArrayList<>(users);
-    ordered.sort((a, b) -> Integer.compare(a.id(), b.id()));
-
+      long revision, String filterFirstName, String filterLastName, Role role, String page) {
     String first = filterFirstName == null ? "*" : filterFirstName.trim().toLowerCase();
     String last = filterLastName == null ? "*" : filterLastName.trim().toLowerCase();
+    String roleKey = role == null ? "*" : role.name();
+
+    String filter =
+        Base64.getUrlEncoder()
+            .withoutPadding()
+            .encodeToString(
+                (first + '|' + last + '|' + roleKey + '|' + page).getBytes(StandardCharsets.UTF_8));
+    return "W/\"" + revisionEpoch + "." + revision + "-" + filter + "\"";
+  }
 
-    StringBuilder sb = new StringBuilder(first).append('|').append(last);
-    for (PublicUser user : ordered) {
-      sb.append('|')
-          .append(user.id())
-          .append(':')
-          .append(user.firstName())
-          .append(':')
-          .append(user.lastName())
-          .append(':')
-          .append(user.email())
-          .append(':')
-          .append(user.role());
-    }
-
-    byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
-    try {
-      MessageDigest digest = MessageDigest.getInstance("SHA-256");
-      String b64 = Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest(data));
-      return "W/\"" + b64 + "\"";
-    } catch (NoSuchAlgorithmException e) {
-      String fallback = Integer.toHexString(sb.toString().hashCode());
-      return "W/\"" + fallback + "\"";
-    }
+  /**
+   * @param value String, a field of the request, possibly missing
+   * @param maxLength int, the largest length allowed
+   * @return boolean, true if the field is missing or not longer than the limit
+   */
+  private static boolean fitsIn(String value, int maxLength) {
+    return value == null || value.length() <= maxLength;
   }
 }
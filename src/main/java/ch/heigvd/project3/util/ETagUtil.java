@@ -0,0 +1,116 @@
+package ch.heigvd.project3.util;
+
+/**
+ * ETags of single items and users, and comparison of ETags with conditional request headers.
+ *
+ * <p>The ETag of an item or user is strong, as a given version always has the same representation,
+ * so that it can be used in If-Match. It is derived from the id and version of the entry and from
+ * an epoch that distinguishes versions of this process from those of a previous run, whose ids and
+ * versions may start over.
+ *
+ * <p>A read replica adopts the epoch of its primary, so that an ETag read from the replica is
+ * accepted by an If-Match sent to the primary.
+ */
+public class ETagUtil {
+  private static volatile String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+  /**
+   * @return String, the epoch embedded in the ETags of this process
+   */
+  public static String epoch() {
+    return epoch;
+  }
+
+  /**
+   * Replaces the epoch of this process, for a read replica following a primary. Entries created
+   * afterwards carry ETags with the new epoch.
+   *
+   * @param primaryEpoch String, the epoch of the primary
+   */
+  public static void adoptEpoch(String primaryEpoch) {
+    epoch = primaryEpoch;
+  }
+
+  /**
+   * @param id int, the item or user id
+   * @param version long, the version of the entry
+   * @return String, the strong ETag of that version of the entry
+   */
+  public static String of(int id, long version) {
+    return "\"" + epoch + "." + id + "." + version + "\"";
+  }
+
+  /**
+   * Checks an If-Match header against the ETag of the current entry, with the strong comparison
+   * required by RFC 9110: a weak ETag never matches.
+   *
+   * @param ifMatch String, the value of the If-Match header, or null
+   * @param etag String, the ETag of the current entry
+   * @return boolean, true if the header is "*" or lists the ETag, false otherwise
+   */
+  public static boolean ifMatch(String ifMatch, String etag) {
+    return matches(ifMatch, etag, false);
+  }
+
+  /**
+   * Checks an If-None-Match header against the ETag of the current representation, with the weak
+   * comparison required by RFC 9110: the W/ prefixes are ignored.
+   *
+   * @param ifNoneMatch String, the value of the If-None-Match header, or null
+   * @param etag String, the ETag of the current representation
+   * @return boolean, true if the header is "*" or lists the ETag, false otherwise
+   */
+  public static boolean ifNoneMatch(String ifNoneMatch, String etag) {
+    return matches(ifNoneMatch, etag, true);
+  }
+
+  /**
+   * Walks the comma-separated list of a conditional header in place instead of splitting it.
+   *
+   * @param header String, the value of the header, or null
+   * @param etag String, the ETag to look for
+   * @param weak boolean, true to compare weakly, false to compare strongly
+   * @return boolean, true if the header is "*" or lists the ETag, false otherwise
+   */
+  private static boolean matches(String header, String etag, boolean weak) {
+    if (header == null) {
+      return false;
+    }
+    int etagFrom = etag.startsWith("W/") ? 2 : 0;
+    // A strong comparison never matches a weak ETag, on either side
+    boolean comparable = weak || etagFrom == 0;
+    int etagLength = etag.length() - etagFrom;
+
+    int length = header.length();
+    int start = 0;
+    while (start < length) {
+      int end = header.indexOf(',', start);
+      if (end < 0) {
+        end = length;
+      }
+      int from = start;
+      int to = end;
+      while (from < to && Character.isWhitespace(header.charAt(from))) {
+        from++;
+      }
+      while (to > from && Character.isWhitespace(header.charAt(to - 1))) {
+        to--;
+      }
+      if (to - from == 1 && header.charAt(from) == '*') {
+        return true;
+      }
+      boolean weakToken = header.startsWith("W/", from);
+      if (weakToken) {
+        from += 2;
+      }
+      if (comparable
+          && (weak || !weakToken)
+          && to - from == etagLength
+          && header.regionMatches(from, etag, etagFrom, etagLength)) {
+        return true;
+      }
+      start = end + 1;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,169 @@
+package ch.heigvd.project3.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks after a delay, for large numbers of short-lived timeouts that are mostly cancelled.
+ * Time is cut in ticks and a ring of buckets holds the timeouts by the tick they expire at, so
+ * scheduling and cancelling cost O(1) whatever the number of pending timeouts, where a scheduled
+ * executor would keep one heap entry per task.
+ *
+ * <p>Schedulers only add the timeout to a queue. A single thread moves queued timeouts to their
+ * bucket and, on every tick, runs the tasks of the current bucket whose round has come; a timeout
+ * further away than one turn of the wheel waits for as many rounds. Cancelled timeouts are dropped
+ * when their bucket is next visited. Tasks run on the wheel thread and must be short. A timeout
+ * fires up to one tick late, never early.
+ */
+public class HashedTimerWheel {
+  private static final Logger LOG = LoggerFactory.getLogger(HashedTimerWheel.class);
+
+  private static final int PENDING = 0;
+  private static final int CANCELLED = 1;
+  private static final int EXPIRED = 2;
+
+  /** A scheduled task, which can be cancelled until it runs. */
+  public static final class Timeout {
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    // Owned by the wheel thread once the timeout is in a bucket
+    private long rounds;
+    private Timeout next;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * @return boolean, true if the task will not run, false if it already ran or was cancelled
+     */
+    public boolean cancel() {
+      return state.compareAndSet(PENDING, CANCELLED);
+    }
+  }
+
+  private final long tickNanos;
+  private final Timeout[] buckets;
+  private final int mask;
+  private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+  private final long start = System.nanoTime();
+  private final Thread worker;
+
+  // Owned by the wheel thread, the number of ticks processed
+  private long tick;
+
+  /**
+   * @param name String, the name of the wheel thread
+   * @param tickMillis long, the duration of a tick in milliseconds, the precision of the timeouts
+   * @param size int, the number of buckets, rounded up to a power of two
+   */
+  public HashedTimerWheel(String name, long tickMillis, int size) {
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.buckets = new Timeout[Integer.highestOneBit(Math.max(1, size - 1)) << 1];
+    this.mask = buckets.length - 1;
+    this.worker = Thread.ofPlatform().daemon().name(name).start(this::run);
+  }
+
+  /**
+   * Schedules a task.
+   *
+   * @param task Runnable, run on the wheel thread once the delay has passed
+   * @param delay long, the delay in milliseconds
+   * @return Timeout, the handle to cancel the task
+   */
+  public Timeout schedule(Runnable task, long delay) {
+    Timeout timeout =
+        new Timeout(task, System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(delay));
+    scheduled.add(timeout);
+    return timeout;
+  }
+
+  /** Stops the wheel thread. Pending tasks never run. */
+  public void stop() {
+    worker.interrupt();
+  }
+
+  private void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      long next = (tick + 1) * tickNanos;
+      long now;
+      while ((now = System.nanoTime() - start) < next) {
+        LockSupport.parkNanos(next - now);
+        if (Thread.currentThread().isInterrupted()) {
+          return;
+        }
+      }
+      tick++;
+      transferScheduled();
+      expire(now);
+    }
+  }
+
+  /** Moves the newly scheduled timeouts to the bucket of the tick they expire at. */
+  private void transferScheduled() {
+    Timeout timeout;
+    while ((timeout = scheduled.poll()) != null) {
+      if (timeout.state.get() == CANCELLED) {
+        continue;
+      }
+      // A deadline already passed is handled in the current bucket
+      long expiryTick = Math.max(tick, (timeout.deadline + tickNanos - 1) / tickNanos);
+      timeout.rounds = (expiryTick - tick) / buckets.length;
+      int index = (int) (expiryTick & mask);
+      timeout.next = buckets[index];
+      buckets[index] = timeout;
+    }
+  }
+
+  /**
+   * Runs the due tasks of the current bucket, and drops its cancelled timeouts.
+   *
+   * @param now long, the current time since the wheel started, in nanoseconds
+   */
+  private void expire(long now) {
+    int index = (int) (tick & mask);
+    Timeout previous = null;
+    Timeout timeout = buckets[index];
+    while (timeout != null) {
+      Timeout next = timeout.next;
+      boolean remove;
+      if (timeout.state.get() == CANCELLED) {
+        remove = true;
+      } else if (timeout.rounds > 0) {
+        timeout.rounds--;
+        remove = false;
+      } else if (timeout.deadline > now) {
+        // Deadlines are rounded up to their tick, this only guards against rounding errors
+        remove = false;
+      } else {
+        remove = true;
+        if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+          try {
+            timeout.task.run();
+          } catch (RuntimeException e) {
+            LOG.error("Timer task failed", e);
+          }
+        }
+      }
+
+      if (remove) {
+        if (previous == null) {
+          buckets[index] = next;
+        } else {
+          previous.next = next;
+        }
+        timeout.next = null;
+      } else {
+        previous = timeout;
+      }
+      timeout = next;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package ch.heigvd.project3.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.json.JavalinJackson;
+import io.javalin.json.JsonMapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes large lists as JSON arrays straight to the response, one element at a time, instead of
+ * building the whole body in memory first.
+ *
+ * <p>The elements are serialized with the JSON mapper configured on the app, so a streamed response
+ * looks exactly like a buffered one. The status and the first bytes are sent before the last
+ * element is read, so a failure past that point cannot become an error response: the connection is
+ * aborted instead, and the client sees a truncated body.
+ */
+public class JsonStreamUtil {
+  private static final Logger LOG = LoggerFactory.getLogger(JsonStreamUtil.class);
+
+  /**
+   * Writes the elements as a JSON array straight to the response output stream. No content length
+   * is known in advance, so the response is sent with chunked transfer encoding and only the
+   * element being serialized is held in memory.
+   *
+   * @param ctx the Javalin context containing the request and response
+   * @param elements the elements to write, consumed lazily
+   * @throws UncheckedIOException if writing to the response fails, to abort the connection
+   */
+  public static void writeArray(Context ctx, Stream<?> elements) {
+    ctx.contentType(ContentType.APPLICATION_JSON);
+    OutputStream out = ctx.outputStream();
+    JsonMapper mapper = ctx.jsonMapper();
+
+    if (!(mapper instanceof JavalinJackson jackson)) {
+      mapper.writeToOutputStream(elements, out);
+      return;
+    }
+    try (JsonGenerator generator = jackson.getMapper().createGenerator(out)) {
+      // The servlet output stream belongs to Jetty, the generator must not close it
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      generator.writeStartArray();
+      Iterator<?> iterator = elements.iterator();
+      while (iterator.hasNext()) {
+        generator.writePOJO(iterator.next());
+      }
+      generator.writeEndArray();
+    } catch (IOException e) {
+      LOG.warn("Streaming {} failed after the response was committed", ctx.path(), e);
+      throw new UncheckedIOException(e);
+    }
+  }
+}